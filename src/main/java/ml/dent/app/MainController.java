@@ -1,13 +1,14 @@
 package ml.dent.app;
 
 import io.netty.channel.ChannelFuture;
-import javafx.animation.KeyFrame;
-import javafx.animation.Timeline;
+import javafx.animation.PauseTransition;
+import javafx.beans.binding.Bindings;
 import javafx.beans.binding.BooleanBinding;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
+import javafx.beans.value.ChangeListener;
 import javafx.event.EventType;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
@@ -30,14 +31,16 @@ import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
 import javafx.util.Duration;
 import ml.dent.net.ControllerNetworkClient;
+import ml.dent.net.EventLoopProvider;
+import ml.dent.net.ReconnectEngine;
 import ml.dent.net.SimpleNetworkClient;
 import ml.dent.util.UIUtil;
 import ml.dent.video.VideoClient;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class MainController {
     private final Stage window;
@@ -45,6 +48,9 @@ public class MainController {
     private ControllerNetworkClient networkClient;
     private VideoClient             videoClient;
 
+    private ReconnectEngine networkReconnect;
+    private ReconnectEngine videoReconnect;
+
     private StatusHandler statusHandler;
 
     public MainController(Stage window) {
@@ -113,8 +119,11 @@ public class MainController {
         // Status Handler needs to be initialized before video and network client
         statusHandler = new StatusHandler(leftStatus, rightStatus, window);
 
-        networkClient = new ControllerNetworkClient("bounceserver.tk", 443);
-        videoClient = new VideoClient("bounceserver.tk", 443);
+        // Commands and video run on separate event loops, so video load cannot delay a command
+        networkClient = new ControllerNetworkClient("bounceserver.tk", 443, EventLoopProvider.getControl());
+        videoClient = new VideoClient("bounceserver.tk", 443, EventLoopProvider.getBulk());
+        networkReconnect = new ReconnectEngine(networkClient);
+        videoReconnect = new ReconnectEngine(videoClient);
         networkClient.setName("Network Client");
         videoClient.setName("Video Client");
 
@@ -141,7 +150,7 @@ public class MainController {
         networkClient.connectionActiveProperty().addListener((listener, oldVal, newVal) -> {
             if (!networkClient.isConnectionActive()) {
                 if (networkClient.isUnexpectedClose()) {
-                    handleDisconnect(networkClient);
+                    handleDisconnect(networkClient, networkReconnect);
                 }
                 statusHandler.offerStatus("Network client disconnected from server", StatusHandler.INFO);
             } else {
@@ -152,7 +161,7 @@ public class MainController {
         videoClient.connectionActiveProperty().addListener((listener, oldVal, newVal) -> {
             if (!videoClient.isConnectionActive()) {
                 if (videoClient.isUnexpectedClose()) {
-                    handleDisconnect(videoClient);
+                    handleDisconnect(videoClient, videoReconnect);
                 }
                 statusHandler.offerStatus("Video client disconnected from server", StatusHandler.INFO);
             }
@@ -165,7 +174,7 @@ public class MainController {
         });
         speedDisplay.textProperty().bind(speedControl.valueProperty().asString());
 
-        bindVideoTo(imageContainer);
+        bindVideoTo(imageContainer, true);
         imageContainer.prefWidthProperty().bind(displayPanel.widthProperty());
         imageContainer.prefHeightProperty().bind(displayPanel.heightProperty());
 
@@ -201,7 +210,9 @@ public class MainController {
 
         /* GUI BINDINGS */
 
+        // GStreamer is set up in the background, the window does not wait for it
         videoClient.startVideo(videoView);
+        window.setOnShown(event -> videoClient.getStartupTimings().markWindowShown());
 
         statusHandler.setVerbosity(StatusHandler.INFO);
     }
@@ -293,11 +304,11 @@ public class MainController {
             popoutContainer.getChildren().add(videoView);
             root.getChildren().add(popoutContainer);
 
-            bindVideoTo(popoutContainer);
+            bindVideoTo(popoutContainer, false);
 
             videoPopout.setOnCloseRequest(event -> {
                 event.consume();
-                bindVideoTo(imageContainer);
+                bindVideoTo(imageContainer, true);
                 imageContainer.getChildren().add(videoView);
                 videoPopout.close();
             });
@@ -394,7 +405,7 @@ public class MainController {
     /**
      * Checks to see if the given network client disconnected unexpectedly, if so it tries to automatically reconnect
      */
-    private void handleDisconnect(SimpleNetworkClient client) {
+    private void handleDisconnect(SimpleNetworkClient client, ReconnectEngine reconnectEngine) {
         if (client.isUnexpectedClose()) {
             BooleanProperty isDone = new SimpleBooleanProperty(false);
             StringProperty completionText = new SimpleStringProperty("Successfully reconnected " + client.getName().toLowerCase() + " to the server");
@@ -402,52 +413,27 @@ public class MainController {
             UIUtil.runOnJFXThread(() -> {
                 Alert alert = new Alert(Alert.AlertType.ERROR, "Network client lost connection to server, trying to reconnect. Press cancel to stop trying", ButtonType.CANCEL);
                 alert.setTitle("Lost connection");
-                alert.setHeaderText("Trying to reconnect in ");
+                alert.headerTextProperty().bind(Bindings.createStringBinding(() -> {
+                    long delay = reconnectEngine.nextAttemptDelayProperty().get();
+                    return delay > 0 ? String.format("Trying to reconnect in %.1f seconds", delay / 1000.0) : "Trying to reconnect";
+                }, reconnectEngine.nextAttemptDelayProperty()));
                 alert.initOwner(window);
-                new Thread(() -> {
-                    while (!alert.isShowing()) {
-                        // block
-                    }
-                    ChannelFuture cf;
-                    int tries = 1;
-                    while (alert.isShowing()) { // Cancel reconnect attempt if user closes alert window
-                        if (client.isConnectionActive()) {
-                            // make sure not already connected before retrying
-                            break;
-                        }
-                        // wait for async connect method to finish
-                        cf = client.connect().awaitUninterruptibly();
-                        if (cf.isSuccess()) {
-                            // reconnect successful
-                            break;
-                        }
-                        // Countdown animation until next attempt
-                        AtomicInteger time = new AtomicInteger(tries);
-                        Label timerLabel = new Label(time.toString());
-                        Timeline timeline = new Timeline();
-                        timeline.setCycleCount(Timeline.INDEFINITE);
-                        timeline.getKeyFrames().add(
-                                new KeyFrame(Duration.seconds(1), event -> {
-                                    time.decrementAndGet();
-                                    timerLabel.setText(time.toString());
-                                    if (time.get() <= 0)
-                                        timeline.stop();
-                                }));
-                        UIUtil.runOnJFXThread(() -> alert.setGraphic(timerLabel));
-                        timeline.playFromStart();
-                        try {
-                            // wait for twice the amount of time before retrying reconnect attempt
-                            Thread.sleep(tries * 1000);
-                        } catch (InterruptedException ignored) {
-                            break;
-                        }
-                        tries *= 2;
+                ChangeListener<Boolean> closeWhenDone = (obv, oldVal, newVal) -> {
+                    if (!newVal) {
+                        alert.close();
                     }
-                    UIUtil.runOnJFXThread(alert::close);
-                }).start();
+                };
+                reconnectEngine.reconnectingProperty().addListener(closeWhenDone);
+                reconnectEngine.start();
+                // Returns once the engine reconnected or the user cancelled
                 alert.showAndWait();
+                reconnectEngine.reconnectingProperty().removeListener(closeWhenDone);
+                reconnectEngine.cancel();
+                if (!client.isConnectionActive()) {
+                    completionText.set("Stopped trying to reconnect " + client.getName().toLowerCase() + " to the server");
+                }
+                isDone.set(true);
             });
-            isDone.set(true);
         }
     }
 
@@ -470,28 +456,49 @@ public class MainController {
         BooleanProperty onError = new SimpleBooleanProperty(false);
         StringProperty completionText = new SimpleStringProperty("Received response from mill.");
         statusHandler.offerOperation("Waiting for response from mill", completionText, isDone, onError, StatusHandler.INFO);
-        new Thread(() -> {
-            try {
-                // wait 10 seconds for mill to respond. Arbitrary number, seems like a reasonable amt. of time to wait
-                boolean recvPing = networkClient.awaitNextPing(1000 * 10);
-                if (!recvPing) {
-                    onError.set(true);
-                    completionText.set("Did not receive response from mill. Terminating connection");
-                    disconnectNetworkClients();
-                }
-                isDone.set(true);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                statusHandler.offerStatus("Error: interrupted while waiting for response from mill", StatusHandler.ERROR);
+        // wait 10 seconds for mill to respond. Arbitrary number, seems like a reasonable amt. of time to wait
+        networkClient.probe(10, TimeUnit.SECONDS).whenComplete((rtt, cause) -> {
+            if (cause != null) {
+                onError.set(true);
+                completionText.set("Did not receive response from mill. Terminating connection");
+                disconnectNetworkClients();
             }
-        }).start();
+            isDone.set(true);
+        });
     }
 
-    private void bindVideoTo(Pane pane) {
-        videoView.fitHeightProperty().unbind();
+    private final PauseTransition displayResize = new PauseTransition(Duration.millis(250));
+
+    private ChangeListener<Number> displaySizeListener;
+    private Pane                   displayPane;
+
+    /**
+     * @param scaled whether the pipeline should scale the video down to the size of the pane, if not the video is
+     *               decoded and converted at full resolution
+     */
+    private void bindVideoTo(Pane pane, boolean scaled) {
+        videoView.fitWidthProperty().unbind();
         videoView.fitHeightProperty().unbind();
         videoView.fitWidthProperty().bind(pane.widthProperty());
         videoView.fitHeightProperty().bind(pane.heightProperty());
+
+        if (displayPane != null) {
+            displayPane.widthProperty().removeListener(displaySizeListener);
+            displayPane.heightProperty().removeListener(displaySizeListener);
+            displayPane = null;
+        }
+        displayResize.stop();
+        if (!scaled) {
+            videoClient.setDisplaySize(0, 0);
+            return;
+        }
+        // Renegotiating the pipeline on every step of a window resize would stall the video, wait for it to settle
+        displayResize.setOnFinished(event -> videoClient.setDisplaySize((int) pane.getWidth(), (int) pane.getHeight()));
+        displaySizeListener = (obs, oldVal, newVal) -> displayResize.playFromStart();
+        pane.widthProperty().addListener(displaySizeListener);
+        pane.heightProperty().addListener(displaySizeListener);
+        displayPane = pane;
+        displayResize.playFromStart();
     }
 
     private void setKeymapOnNode(Node area) {
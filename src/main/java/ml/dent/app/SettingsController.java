@@ -6,7 +6,9 @@ import javafx.scene.Parent;
 import javafx.scene.control.*;
 import javafx.stage.Stage;
 import ml.dent.net.ControllerNetworkClient;
+import ml.dent.net.SimpleNetworkClient;
 import ml.dent.util.UIUtil;
+import ml.dent.video.FXImageSink;
 import ml.dent.video.VideoClient;
 
 import java.io.IOException;
@@ -52,7 +54,7 @@ public class SettingsController {
                 success = saveLogLevel();
                 break;
             case "video":
-                // configure video
+                success = saveVideoSettings();
                 break;
             case "file":
                 // configure file stuff
@@ -116,7 +118,52 @@ public class SettingsController {
         return true;
     }
 
+    @FXML ChoiceBox<FXImageSink.RenderMode>       renderModePicker;
+    @FXML ChoiceBox<FXImageSink.PresentationMode> presentationModePicker;
+
+    @FXML
+    protected void switchToVideoSettingsView() {
+        FXMLLoader settingsLoader = new FXMLLoader(getClass().getResource("/VideoSettings.fxml"));
+        settingsLoader.setController(this);
+        try {
+            Parent view = settingsLoader.load();
+            renderModePicker.getItems().addAll(FXImageSink.RenderMode.values());
+            if (!FXImageSink.isPixelBufferSupported()) {
+                renderModePicker.getItems().remove(FXImageSink.RenderMode.PIXEL_BUFFER);
+            }
+            presentationModePicker.getItems().addAll(FXImageSink.PresentationMode.values());
+            FXImageSink imageSink = videoClient.getImageSink();
+            if (imageSink != null) {
+                renderModePicker.setValue(imageSink.getRenderMode());
+                presentationModePicker.setValue(imageSink.getPresentationMode());
+            } else {
+                // Nothing to configure until the video has started
+                renderModePicker.setDisable(true);
+                presentationModePicker.setDisable(true);
+            }
+            splitPane.getItems().set(1, view);
+        } catch (IOException e) {
+            e.printStackTrace();
+            statusHandler.offerError("Failed to load video settings view", "GUI Error");
+        }
+    }
+
+    private boolean saveVideoSettings() {
+        FXImageSink imageSink = videoClient.getImageSink();
+        if (imageSink == null) {
+            return true;
+        }
+        if (renderModePicker.getValue() != imageSink.getRenderMode()) {
+            imageSink.setRenderMode(renderModePicker.getValue());
+        }
+        if (presentationModePicker.getValue() != imageSink.getPresentationMode()) {
+            imageSink.setPresentationMode(presentationModePicker.getValue());
+        }
+        return true;
+    }
+
     private boolean configureNetworkSettings(String host, String port, boolean ssl, boolean proxy, String internalPort) {
+        String oldSettings = describeNetworkSettings();
         try {
             setHost(host);
             setPort(port);
@@ -126,9 +173,33 @@ public class SettingsController {
             UIUtil.showError("Error", e.getMessage(), "Failed to save network settings", parent);
             return false;
         }
+        if (!oldSettings.equals(describeNetworkSettings())) {
+            // Build the new connections before dropping the old ones, so control and video are not lost meanwhile
+            switchover(networkClient);
+            switchover(videoClient);
+        }
         return true;
     }
 
+    private String describeNetworkSettings() {
+        return networkClient.getHost() + ":" + networkClient.getPort() + ":" + networkClient.sslEnabled() + ":" + networkClient.proxyEnabled() + ":"
+                + networkClient.getInternalPort();
+    }
+
+    private void switchover(SimpleNetworkClient client) {
+        if (!client.isConnectionActive()) {
+            return;
+        }
+        client.switchover().addListener(future -> {
+            if (future.isSuccess()) {
+                statusHandler.offerStatus(String.format("%s moved to the new settings in %.0fms", client.getName(), client.lastSwitchoverTimeProperty().get()),
+                        StatusHandler.INFO);
+            } else {
+                statusHandler.offerStatus(client.getName() + " could not connect with the new settings, keeping the old connection", StatusHandler.WARNING);
+            }
+        });
+    }
+
     private void setHost(String hostname) throws IllegalArgumentException {
         if (hostname.isEmpty()) {
             throw new IllegalArgumentException("Hostname must not be empty");
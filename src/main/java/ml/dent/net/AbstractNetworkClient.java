@@ -1,20 +1,21 @@
 package ml.dent.net;
 
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.util.concurrent.Future;
-import javafx.beans.property.BooleanProperty;
-import javafx.beans.property.ReadOnlyBooleanProperty;
-import javafx.beans.property.SimpleBooleanProperty;
+import io.netty.util.concurrent.ScheduledFuture;
+import javafx.beans.property.*;
 
-import javax.net.ssl.*;
+import javax.net.ssl.SSLException;
 import java.net.InetSocketAddress;
-import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * The base network client class that handles connecting to a server.
@@ -26,9 +27,10 @@ public abstract class AbstractNetworkClient {
     private String host;
     private int    port;
 
-    private EventLoopGroup group;
-    private Channel        channel;
-    private ChannelFuture  connectionFuture;
+    private final EventLoopProvider eventLoopProvider;
+
+    private volatile Channel channel;
+    private ChannelFuture    connectionFuture;
 
     private boolean connectCalled;
     private boolean disconnectCalled;
@@ -41,8 +43,16 @@ public abstract class AbstractNetworkClient {
     private String closeReason;
 
     public AbstractNetworkClient(String host, int port) {
+        this(host, port, EventLoopProvider.getDefault());
+    }
+
+    /**
+     * @param eventLoopProvider provides the event loop group this client's connections run on
+     */
+    public AbstractNetworkClient(String host, int port, EventLoopProvider eventLoopProvider) {
         this.host = host;
         this.port = port;
+        this.eventLoopProvider = eventLoopProvider;
     }
 
     /**
@@ -65,55 +75,145 @@ public abstract class AbstractNetworkClient {
      * complete
      */
     public ChannelFuture connect(ChannelHandler... channelHandlers) {
+        return connect(null, channelHandlers);
+    }
+
+    /**
+     * Same as {@link #connect(ChannelHandler...)}, see {@link #openChannel(Consumer, ChannelHandler...)} for the
+     * callback
+     */
+    protected ChannelFuture connect(Consumer<ChannelFuture> onCreated, ChannelHandler... channelHandlers) {
         connectCalled = true;
         disconnectCalled = false;
 
-        group = new NioEventLoopGroup();
-        Bootstrap bootstrap = new Bootstrap();
+        ChannelFuture opened = openChannel(onCreated, channelHandlers);
+        connectionFuture = opened;
+        opened.addListener(future -> {
+            connectCalled = false;
+            closeReason = null;
+            if (connectionFuture == opened) {
+                // The channel that won the race between the host's addresses
+                channel = opened.channel();
+            }
+        });
+
+        channel = opened.channel();
+
+        return opened;
+    }
+
+    /**
+     * Opens a new connection with the current settings without making it this client's channel, see
+     * {@link #replaceChannel(Channel)}.
+     * <p>
+     * The host is resolved through the {@link EndpointResolver}, off the event loop and only when its last lookup
+     * expired. A host with several addresses, none of which connected the last time, has them raced against each
+     * other: every address gets its own channel, started one race delay after the previous one or as soon as the
+     * previous one failed. The first channel to connect is kept and gets the handlers, the others are closed.
+     * <p>
+     * Until the race is decided, the returned future's channel is the one for the first address. Cancelling the
+     * future, or closing that channel while it is still connecting, gives up on the whole connection.
+     */
+    protected ChannelFuture openChannel(ChannelHandler... channelHandlers) {
+        return openChannel(null, channelHandlers);
+    }
 
-        bootstrap.group(group);
-        bootstrap.channel(NioSocketChannel.class);
-        bootstrap.remoteAddress(new InetSocketAddress(host, port));
+    /**
+     * Same as {@link #openChannel(ChannelHandler...)}, but hands the returned future to the callback before any
+     * channel starts connecting. Anything the handlers need once the channel is active can be set up there without
+     * racing them.
+     *
+     * @param onCreated runs on the calling thread before this method returns, may be null
+     */
+    protected ChannelFuture openChannel(Consumer<ChannelFuture> onCreated, ChannelHandler... channelHandlers) {
+        Bootstrap bootstrap = new Bootstrap();
 
+        // Every channel holds a reference to the shared group until it is closed
+        bootstrap.group(eventLoopProvider.acquire());
+        bootstrap.channel(eventLoopProvider.channelClass());
         bootstrap.handler(new ChannelInitializer<SocketChannel>() {
             protected void initChannel(SocketChannel socketChannel) throws Exception {
-                if (enableSSL) {
-                    TrustManager[] trustAllCerts = new TrustManager[]{new X509TrustManager() {
-                        public X509Certificate[] getAcceptedIssuers() {
-                            return new X509Certificate[0];
-                        }
+                socketChannel.pipeline().addLast(new ActivationGate());
+            }
+        }).option(ChannelOption.TCP_NODELAY, true).option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark)
+                .option(ChannelOption.ALLOCATOR, allocator);
+
+        ChannelFuture registered = bootstrap.register();
+        ConnectionRace race = new ConnectionRace(bootstrap, registered.channel(), channelHandlers);
+        race.promise.addListener(ChannelFutureListener.CLOSE_ON_FAILURE);
+        if (onCreated != null) {
+            // Connecting only starts from the listener below, so no channel can become active before this
+            onCreated.accept(race.promise);
+        }
 
-                        public void checkClientTrusted(X509Certificate[] certs, String authType) {
-                        }
+        registered.addListener(reg -> {
+            if (!reg.isSuccess()) {
+                race.promise.tryFailure(reg.cause());
+                return;
+            }
+            endpointResolver.resolve(race.peerHost, race.peerPort, race.loop).addListener((Future<List<InetSocketAddress>> lookup) -> {
+                if (lookup.isSuccess()) {
+                    race.start(lookup.getNow());
+                } else {
+                    race.promise.tryFailure(lookup.cause());
+                }
+            });
+        });
+        return race.promise;
+    }
 
-                        public void checkServerTrusted(X509Certificate[] certs, String authType) {
-                        }
-                    }};
+    /**
+     * Makes a channel opened by {@link #openChannel(ChannelHandler...)} this client's channel. Events from the
+     * replaced channel are ignored from then on, closing it is up to the caller.
+     *
+     * @return The channel that was replaced
+     */
+    protected Channel replaceChannel(Channel newChannel) {
+        Channel old = channel;
+        channel = newChannel;
+        connectionFuture = newChannel.newSucceededFuture();
+        connectionStatusProperty.set(newChannel.isActive());
+        channelGeneration.set(channelGeneration.get() + 1);
+        return old;
+    }
 
-                    SSLContext sc = SSLContext.getInstance("SSL");
-                    sc.init(null, trustAllCerts, new SecureRandom());
-                    HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-                    HttpsURLConnection.setDefaultHostnameVerifier((hostname, session) -> true);
+    private final IntegerProperty channelGeneration = new SimpleIntegerProperty();
 
-                    final SSLEngine sslEngine = sc.createSSLEngine(host, port);
-                    sslEngine.setUseClientMode(true);
-                    sslEngine.setNeedClientAuth(false);
+    /**
+     * @return A counter that goes up whenever another channel takes over as this client's channel without the
+     * connection going inactive, such as after a switchover. Listeners are notified on the thread that replaced the
+     * channel, before anything is read from the new one.
+     */
+    public ReadOnlyIntegerProperty channelGenerationProperty() {
+        return channelGeneration;
+    }
 
-                    socketChannel.pipeline().addLast("ssl", new SslHandler(sslEngine));
-                }
-                socketChannel.pipeline().addLast(new InboundHandler()).addLast(channelHandlers);
-            }
-        }).option(ChannelOption.TCP_NODELAY, true).option(ChannelOption.SO_KEEPALIVE, true);
+    private EndpointResolver endpointResolver = EndpointResolver.getDefault();
 
-        connectionFuture = bootstrap.connect();
-        connectionFuture.addListener(future -> {
-            connectCalled = false;
-            closeReason = null;
-        });
+    /**
+     * @param endpointResolver resolves the host and keeps the connect statistics for the next connection
+     */
+    public void setEndpointResolver(EndpointResolver endpointResolver) {
+        this.endpointResolver = endpointResolver;
+    }
+
+    public EndpointResolver getEndpointResolver() {
+        return endpointResolver;
+    }
 
-        channel = connectionFuture.channel();
+    private WriteBufferWaterMark writeBufferWaterMark = WriteBufferWaterMark.DEFAULT;
 
-        return connectionFuture;
+    /**
+     * Sets the watermarks of the channel's outbound buffer for the next connection. The channel stops being writable
+     * once more than high bytes are waiting to be written, and becomes writable again once that drops below low.
+     */
+    public void setWriteBufferWaterMark(int low, int high) {
+        writeBufferWaterMark = new WriteBufferWaterMark(low, high);
+    }
+
+    public WriteBufferWaterMark getWriteBufferWaterMark() {
+        return writeBufferWaterMark;
     }
 
     private boolean enableSSL;
@@ -126,6 +226,24 @@ public abstract class AbstractNetworkClient {
         return enableSSL;
     }
 
+    private final DoubleProperty lastHandshakeTime = new SimpleDoubleProperty();
+
+    private volatile boolean lastHandshakeResumed;
+
+    /**
+     * @return The duration of the last successful TLS handshake in milliseconds
+     */
+    public ReadOnlyDoubleProperty lastHandshakeTimeProperty() {
+        return lastHandshakeTime;
+    }
+
+    /**
+     * @return Whether the last successful TLS handshake resumed the session of an earlier connection
+     */
+    public boolean isLastHandshakeResumed() {
+        return lastHandshakeResumed;
+    }
+
     /**
      * Disconnects the connection
      *
@@ -138,8 +256,7 @@ public abstract class AbstractNetworkClient {
         }
         disconnectCalled = true;
         closeReason = "Connection closed by user";
-        channel.disconnect();
-        return group.shutdownGracefully();
+        return channel.disconnect();
     }
 
     /**
@@ -235,32 +352,292 @@ public abstract class AbstractNetworkClient {
         return channel.isWritable();
     }
 
+    private ByteBufAllocator allocator = BufferPool.allocator();
+
+    /**
+     * @return The allocator this client's channels allocate from, shared by every client
+     */
+    public ByteBufAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * Replaces the shared allocator for the connections opened from now on, so tests can count allocations
+     */
+    void setAllocator(ByteBufAllocator allocator) {
+        this.allocator = allocator;
+    }
+
     protected Channel getChannel() {
         return channel;
     }
 
+    public EventLoopProvider getEventLoopProvider() {
+        return eventLoopProvider;
+    }
+
     protected void setCloseReason(String reason) {
         closeReason = reason;
     }
 
+    /**
+     * Times the TLS handshake from the moment the channel becomes active, removing itself afterwards
+     */
+    private class HandshakeTimer extends ChannelInboundHandlerAdapter {
+
+        private final SslHandler sslHandler;
+
+        private HandshakeTimer(SslHandler sslHandler) {
+            this.sslHandler = sslHandler;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            long start = System.nanoTime();
+            String peerHost = host;
+            int peerPort = port;
+            sslHandler.handshakeFuture().addListener(future -> {
+                if (future.isSuccess()) {
+                    lastHandshakeResumed = SslContextCache.recordSession(peerHost, peerPort, sslHandler.engine().getSession());
+                    lastHandshakeTime.set((System.nanoTime() - start) / 1e6);
+                }
+            });
+            ctx.pipeline().remove(this);
+            super.channelActive(ctx);
+        }
+    }
+
+    /**
+     * The promise of a connection that is still being raced, whose channel is the winner once there is one
+     */
+    private static class RacePromise extends DefaultChannelPromise {
+        private volatile Channel channel;
+
+        private RacePromise(Channel first) {
+            super(first);
+            this.channel = first;
+        }
+
+        @Override
+        public Channel channel() {
+            return channel;
+        }
+    }
+
+    /**
+     * Connects to the resolved endpoints of one connection, each with its own channel. Only touched on the event loop
+     * of the first channel, which every other channel of the race is registered on as well.
+     */
+    private class ConnectionRace {
+        private final Bootstrap        bootstrap;
+        private final Channel          first;
+        private final EventLoop        loop;
+        private final ChannelHandler[] handlers;
+        private final RacePromise      promise;
+
+        private final String peerHost = host;
+        private final int    peerPort = port;
+
+        private final List<Channel> channels = new ArrayList<>();
+
+        private List<InetSocketAddress> endpoints;
+        private ScheduledFuture<?>      nextAttempt;
+        private int                     started;
+        private int                     failed;
+        private boolean                 firstFailed;
+
+        private ConnectionRace(Bootstrap bootstrap, Channel first, ChannelHandler[] handlers) {
+            this.bootstrap = bootstrap;
+            this.first = first;
+            this.loop = first.eventLoop();
+            this.handlers = handlers;
+            this.promise = new RacePromise(first);
+            channels.add(first);
+            first.closeFuture().addListener(future -> eventLoopProvider.release());
+            first.closeFuture().addListener(future -> loop.execute(() -> {
+                // The caller only knows about the first channel until the race is decided, closing it gives up
+                if (!firstFailed) {
+                    end(new ClosedChannelException());
+                }
+            }));
+            promise.addListener(future -> loop.execute(() -> end(null)));
+        }
+
+        private void start(List<InetSocketAddress> endpoints) {
+            if (endpoints.size() > 1 && endpointResolver.isKnownGood(endpoints.get(0))) {
+                // No need to race when the preferred address connected the last time
+                endpoints = endpoints.subList(0, 1);
+            }
+            this.endpoints = endpoints;
+            attempt(first, endpoints.get(started++));
+        }
+
+        private void next() {
+            if (promise.isDone() || started >= endpoints.size()) {
+                return;
+            }
+            InetSocketAddress endpoint = endpoints.get(started++);
+            eventLoopProvider.acquire();
+            ChannelFuture registered = bootstrap.clone(loop).register();
+            Channel ch = registered.channel();
+            ch.closeFuture().addListener(future -> eventLoopProvider.release());
+            channels.add(ch);
+            registered.addListener(reg -> {
+                if (reg.isSuccess()) {
+                    attempt(ch, endpoint);
+                } else {
+                    failed(reg.cause());
+                }
+            });
+        }
+
+        private void attempt(Channel ch, InetSocketAddress endpoint) {
+            if (promise.isDone()) {
+                ch.close();
+                return;
+            }
+            long start = System.nanoTime();
+            ch.connect(endpoint).addListener(future -> {
+                if (future.isSuccess()) {
+                    endpointResolver.recordConnect(endpoint, System.nanoTime() - start);
+                    won(ch);
+                } else if (!promise.isDone()) {
+                    // A refused connection closes its channel, which is no reason to give up on the others
+                    firstFailed |= ch == first;
+                    endpointResolver.recordFailure(endpoint);
+                    failed(future.cause());
+                }
+            });
+            if (started < endpoints.size()) {
+                nextAttempt = loop.schedule(this::next, endpointResolver.getRaceDelay(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * Runs from the connect future, before the winner's channelActive has gone past its {@link ActivationGate}
+         */
+        private void won(Channel ch) {
+            if (promise.isDone()) {
+                ch.close();
+                return;
+            }
+            promise.channel = ch;
+            ChannelPipeline pipeline = ch.pipeline();
+            if (enableSSL) {
+                // The context is shared by every connection to this host and port, which lets the handshake
+                // resume the session of the previous connection
+                SslHandler sslHandler;
+                try {
+                    sslHandler = SslContextCache.get(peerHost, peerPort).newHandler(ch.alloc(), peerHost, peerPort);
+                } catch (SSLException e) {
+                    promise.tryFailure(e);
+                    return;
+                }
+                pipeline.addLast(new HandshakeTimer(sslHandler)).addLast("ssl", sslHandler);
+            }
+            pipeline.addLast(new InboundHandler()).addLast(handlers);
+            promise.trySuccess();
+            pipeline.get(ActivationGate.class).open();
+        }
+
+        private void failed(Throwable cause) {
+            failed++;
+            if (promise.isDone()) {
+                return;
+            }
+            if (started < endpoints.size()) {
+                // Don't wait for the race delay when an attempt already failed
+                if (nextAttempt != null) {
+                    nextAttempt.cancel(false);
+                }
+                next();
+            } else if (failed == started) {
+                // The server may have moved, look it up again next time
+                endpointResolver.invalidate(peerHost);
+                promise.tryFailure(cause);
+            }
+        }
+
+        /**
+         * Closes every channel but the winner once the race is over
+         *
+         * @param cause why the race is given up on, null if it is already over
+         */
+        private void end(Throwable cause) {
+            if (cause != null) {
+                promise.tryFailure(cause);
+            }
+            if (!promise.isDone()) {
+                return;
+            }
+            if (nextAttempt != null) {
+                nextAttempt.cancel(false);
+            }
+            for (Channel ch : channels) {
+                if (!promise.isSuccess() || ch != promise.channel) {
+                    ch.close();
+                }
+            }
+            channels.clear();
+        }
+    }
+
+    /**
+     * Holds back the channelActive of a racing channel until it has won and its handlers have been added
+     */
+    private static class ActivationGate extends ChannelInboundHandlerAdapter {
+
+        private ChannelHandlerContext ctx;
+        private boolean               active;
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            active = true;
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            // A channel that lost the race has no handlers behind this one
+        }
+
+        private void open() {
+            ctx.pipeline().remove(this);
+            if (active) {
+                ctx.fireChannelActive();
+            }
+        }
+    }
+
     private class InboundHandler extends ChannelInboundHandlerAdapter {
 
         @Override
         public void channelActive(ChannelHandlerContext ctx) throws Exception {
-            connectionStatusProperty.set(true);
+            // Connections that are not this client's channel yet, or anymore, do not change its state
+            if (ctx.channel() == channel) {
+                connectionStatusProperty.set(true);
+            }
             super.channelActive(ctx);
         }
 
         @Override
         public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-            connectionStatusProperty.set(false);
+            if (ctx.channel() == channel) {
+                connectionStatusProperty.set(false);
+            }
             super.channelInactive(ctx);
         }
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
             // end of the pipeline, handle the exception
-            closeReason = cause.getMessage();
+            if (ctx.channel() == channel) {
+                closeReason = cause.getMessage();
+            }
             ctx.close();
         }
     }
@@ -0,0 +1,214 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ByteProcessor;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Incrementally decodes what the bounce server sends before a channel is usable: a version string of the form
+ * {@code <channel id width>-<version>}, followed by a status line that is READY if the channel was accepted. Both
+ * may be split across reads or arrive in the same read, and anything after READY is left in the buffer.
+ */
+class BounceServerGreetingDecoder implements ByteProcessor {
+
+    enum Event {
+        /**
+         * All readable bytes were consumed and more are needed
+         */
+        NONE,
+        /**
+         * The version string is complete, {@link #channelBytes()} is available
+         */
+        VERSION,
+        /**
+         * The server accepted the channel
+         */
+        READY,
+        /**
+         * The server sent a status other than READY, see {@link #statusText()}
+         */
+        REJECTED,
+        /**
+         * The version string was not understood
+         */
+        MALFORMED
+    }
+
+    private static final byte[] READY = {'R', 'E', 'A', 'D', 'Y'};
+
+    private static final int MAX_WIDTH_DIGITS = 4;
+
+    private enum State {
+        WIDTH, VERSION, STATUS_START, STATUS, DONE
+    }
+
+    private State state = State.WIDTH;
+    private Event event;
+
+    private int channelBytes;
+    private int widthDigits;
+
+    private boolean versionCutOff;
+
+    private int          readyMatched;
+    private final byte[] statusText = new byte[64];
+    private int          statusLength;
+
+    /**
+     * Consumes bytes from the buffer until the next event. The version string ends with its line ending, a version
+     * string that was cut off by the end of a read is continued by the next read, unless that read starts with a
+     * status line of its own. READY also needs its line ending, so that a longer status split right behind it is not
+     * taken for it. Nothing else ends a line, the bytes received are the only thing that decides.
+     */
+    Event decode(ByteBuf buf) {
+        if (state == State.DONE) {
+            return Event.NONE;
+        }
+        if (state == State.VERSION && versionCutOff && startsWithReady(buf)) {
+            state = State.STATUS_START;
+            return Event.VERSION;
+        }
+        event = Event.NONE;
+        int end = buf.forEachByte(this);
+        if (end < 0) {
+            buf.skipBytes(buf.readableBytes());
+            versionCutOff = state == State.VERSION;
+            if (state == State.STATUS && readyMatched < 0) {
+                // A rejection is followed by the server closing the connection, don't wait for a line ending
+                state = State.DONE;
+                return Event.REJECTED;
+            }
+            return Event.NONE;
+        }
+        buf.readerIndex(end + 1);
+        if (event == Event.READY) {
+            // Drop the rest of the line ending behind READY if it arrived with it
+            while (buf.isReadable() && isLineEnding(buf.getByte(buf.readerIndex()))) {
+                buf.skipBytes(1);
+            }
+        }
+        return event;
+    }
+
+    /**
+     * @return Whether the version string has started but its line ending has not arrived yet
+     */
+    boolean isInVersion() {
+        return state == State.VERSION;
+    }
+
+    /**
+     * @return Whether the status line so far is READY and only its line ending has not arrived yet
+     */
+    boolean isReadyPending() {
+        return state == State.STATUS && readyMatched == READY.length;
+    }
+
+    @Override
+    public boolean process(byte b) {
+        switch (state) {
+            case WIDTH:
+                if (b >= '0' && b <= '9' && widthDigits < MAX_WIDTH_DIGITS) {
+                    channelBytes = channelBytes * 10 + (b - '0');
+                    widthDigits++;
+                    return true;
+                }
+                if (b == '-' && widthDigits > 0) {
+                    state = State.VERSION;
+                    return true;
+                }
+                return finish(Event.MALFORMED);
+            case VERSION:
+                if (b == '\n') {
+                    state = State.STATUS_START;
+                    event = Event.VERSION;
+                    return false;
+                }
+                return true;
+            case STATUS_START:
+                if (isLineEnding(b) || b == ' ') {
+                    return true;
+                }
+                state = State.STATUS;
+                return processStatus(b);
+            case STATUS:
+                return processStatus(b);
+            default:
+                return false;
+        }
+    }
+
+    private boolean processStatus(byte b) {
+        if (readyMatched == READY.length) {
+            // READY only counts as the whole line, not as the start of a longer status
+            if (isLineEnding(b)) {
+                return finish(Event.READY);
+            }
+            readyMatched = -1;
+        } else if (readyMatched >= 0) {
+            if (b == READY[readyMatched]) {
+                readyMatched++;
+            } else {
+                readyMatched = -1;
+            }
+        }
+        if (statusLength < statusText.length) {
+            statusText[statusLength++] = b;
+        }
+        if (b == '\n') {
+            return finish(Event.REJECTED);
+        }
+        return true;
+    }
+
+    private boolean finish(Event e) {
+        state = State.DONE;
+        event = e;
+        return false;
+    }
+
+    /**
+     * @return Whether the readable bytes start with READY followed by a line ending or the end of the buffer
+     */
+    private static boolean startsWithReady(ByteBuf buf) {
+        int index = buf.readerIndex();
+        if (buf.readableBytes() < READY.length) {
+            return false;
+        }
+        for (int i = 0; i < READY.length; i++) {
+            if (buf.getByte(index + i) != READY[i]) {
+                return false;
+            }
+        }
+        return buf.readableBytes() == READY.length || isLineEnding(buf.getByte(index + READY.length));
+    }
+
+    private static boolean isLineEnding(byte b) {
+        return b == '\r' || b == '\n';
+    }
+
+    /**
+     * @return The channel id width from the version string
+     */
+    int channelBytes() {
+        return channelBytes;
+    }
+
+    /**
+     * @return The status line the server sent, only meant for error messages
+     */
+    String statusText() {
+        return new String(statusText, 0, statusLength, CharsetUtil.US_ASCII).trim();
+    }
+
+    /**
+     * Writes the channel id as a zero padded, lowercase hex number of at least the given width
+     */
+    static void writeChannelId(ByteBuf out, int channel, int width) {
+        int digits = Math.max(width, (35 - Integer.numberOfLeadingZeros(channel)) / 4);
+        for (int i = digits - 1; i >= 0; i--) {
+            int nibble = i < 8 ? (channel >>> (i * 4)) & 0xf : 0;
+            out.writeByte(nibble < 10 ? '0' + nibble : 'a' + nibble - 10);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package ml.dent.net;
+
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PoolChunkListMetric;
+import io.netty.buffer.PoolChunkMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The one pooled allocator every network client allocates its buffers from, set on the bootstrap of every connection.
+ * Sharing it means there is only one set of arenas and thread caches no matter how many clients and standby
+ * connections there are.
+ * <p>
+ * The pool is sized for the small machines the client runs on: chunks of 2MB instead of Netty's 16MB, a single heap
+ * arena since buffers are direct, and four direct arenas.
+ */
+public class BufferPool {
+
+    private static final int PAGE_SIZE   = 8192;
+    private static final int MAX_ORDER   = 8;
+    private static final int HEAP_ARENAS = 1;
+    // Threads are spread over the arenas, four covers the control loop, the video loops and the JavaFX thread
+    private static final int DIRECT_ARENAS = 4;
+
+    // The thread caches keep Netty's defaults
+    private static final PooledByteBufAllocator ALLOCATOR = new PooledByteBufAllocator(true, HEAP_ARENAS, DIRECT_ARENAS,
+            PAGE_SIZE, MAX_ORDER, PooledByteBufAllocator.defaultTinyCacheSize(), PooledByteBufAllocator.defaultSmallCacheSize(),
+            PooledByteBufAllocator.defaultNormalCacheSize(), PooledByteBufAllocator.defaultUseCacheForAllThreads());
+
+    private BufferPool() {
+    }
+
+    /**
+     * @return The shared allocator
+     */
+    public static PooledByteBufAllocator allocator() {
+        return ALLOCATOR;
+    }
+
+    /**
+     * Sets how closely buffers are tracked for leaks. Anything above {@link ResourceLeakDetector.Level#SIMPLE} costs
+     * noticeably on every allocation and is meant for soak runs.
+     */
+    public static void setLeakDetectionLevel(ResourceLeakDetector.Level level) {
+        ResourceLeakDetector.setLevel(level);
+    }
+
+    public static ResourceLeakDetector.Level getLeakDetectionLevel() {
+        return ResourceLeakDetector.getLevel();
+    }
+
+    /**
+     * @return The bytes of direct memory reserved by the pool's chunks
+     */
+    public static long getUsedDirectMemory() {
+        return ALLOCATOR.metric().usedDirectMemory();
+    }
+
+    /**
+     * @return The bytes of heap memory reserved by the pool's chunks
+     */
+    public static long getUsedHeapMemory() {
+        return ALLOCATOR.metric().usedHeapMemory();
+    }
+
+    /**
+     * @return The usage of every direct arena followed by every heap arena
+     */
+    public static List<ArenaUsage> getArenaUsage() {
+        List<ArenaUsage> usage = new ArrayList<>();
+        List<PoolArenaMetric> direct = ALLOCATOR.metric().directArenas();
+        for (int i = 0; i < direct.size(); i++) {
+            usage.add(new ArenaUsage(true, i, direct.get(i)));
+        }
+        List<PoolArenaMetric> heap = ALLOCATOR.metric().heapArenas();
+        for (int i = 0; i < heap.size(); i++) {
+            usage.add(new ArenaUsage(false, i, heap.get(i)));
+        }
+        return usage;
+    }
+
+    /**
+     * Memory accounting of one arena at the time it was taken
+     */
+    public static class ArenaUsage {
+        private final boolean direct;
+        private final int     index;
+        private final long    usedBytes;
+        private final long    pinnedBytes;
+        private final long    activeAllocations;
+        private final int     threadCaches;
+
+        private ArenaUsage(boolean direct, int index, PoolArenaMetric arena) {
+            this.direct = direct;
+            this.index = index;
+            long used = 0;
+            for (PoolChunkListMetric chunkList : arena.chunkLists()) {
+                for (PoolChunkMetric chunk : chunkList) {
+                    used += chunk.chunkSize();
+                }
+            }
+            this.usedBytes = used;
+            this.pinnedBytes = arena.numActiveBytes();
+            this.activeAllocations = arena.numActiveAllocations();
+            this.threadCaches = arena.numThreadCaches();
+        }
+
+        public boolean isDirect() {
+            return direct;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return The bytes reserved by the arena's chunks, whether or not they are handed out
+         */
+        public long getUsedBytes() {
+            return usedBytes;
+        }
+
+        /**
+         * @return The bytes held by buffers that have not been released yet
+         */
+        public long getPinnedBytes() {
+            return pinnedBytes;
+        }
+
+        public long getActiveAllocations() {
+            return activeAllocations;
+        }
+
+        /**
+         * @return The number of threads caching buffers of this arena
+         */
+        public int getThreadCaches() {
+            return threadCaches;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s arena %d: %d bytes used, %d bytes pinned, %d buffers, %d thread caches",
+                    direct ? "Direct" : "Heap", index, usedBytes, pinnedBytes, activeAllocations, threadCaches);
+        }
+    }
+}
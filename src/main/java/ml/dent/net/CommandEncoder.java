@@ -0,0 +1,77 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import ml.dent.util.Markers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encodes mill commands into frames that can be written to the channel in a single write. Commands that are always
+ * the same byte, such as STOP and the pings, share a cached read-only frame that is handed out as a duplicate, so
+ * they never allocate. Commands with an argument get one buffer sized exactly for the marker and the argument.
+ */
+public class CommandEncoder {
+
+    private static final ByteBuf STOP          = fixedFrame(Markers.STOP);
+    private static final ByteBuf PING_REQUEST  = fixedFrame(Markers.PING_REQUEST);
+    private static final ByteBuf PING_RESPONSE = fixedFrame(Markers.PING_RESPONSE);
+
+    private final AtomicLong encoded     = new AtomicLong();
+    private final AtomicLong allocations = new AtomicLong();
+
+    private static ByteBuf fixedFrame(byte marker) {
+        return Unpooled.unreleasableBuffer(Unpooled.directBuffer(1, 1).writeByte(marker).asReadOnly());
+    }
+
+    /**
+     * @param marker a command that has no argument
+     * @return A frame for the command that shares its memory with every other frame for the same command
+     * @throws IllegalArgumentException if the command needs an argument
+     */
+    public ByteBuf encode(byte marker) {
+        ByteBuf frame;
+        switch (marker) {
+            case Markers.STOP:
+                frame = STOP;
+                break;
+            case Markers.PING_REQUEST:
+                frame = PING_REQUEST;
+                break;
+            case Markers.PING_RESPONSE:
+                frame = PING_RESPONSE;
+                break;
+            default:
+                throw new IllegalArgumentException("No fixed frame for marker " + marker);
+        }
+        encoded.incrementAndGet();
+        return frame.duplicate();
+    }
+
+    /**
+     * @return A newly allocated frame holding the marker followed by its argument
+     */
+    public ByteBuf encode(ByteBufAllocator alloc, byte marker, byte argument) {
+        ByteBuf frame = alloc.buffer(2, 2);
+        frame.writeByte(marker);
+        frame.writeByte(argument);
+        encoded.incrementAndGet();
+        allocations.incrementAndGet();
+        return frame;
+    }
+
+    /**
+     * @return The number of commands encoded
+     */
+    public long getEncodedCount() {
+        return encoded.get();
+    }
+
+    /**
+     * @return The number of buffers allocated to encode commands, never more than one per command
+     */
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+}
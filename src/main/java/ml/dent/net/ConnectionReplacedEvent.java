@@ -0,0 +1,24 @@
+package ml.dent.net;
+
+/**
+ * Fired through the pipeline of a connection right before it is closed because another connection took its place,
+ * after a switchover or a failover. The handlers behind the handshake handlers never see such a connection become
+ * inactive, so this is their chance to let go of whatever they hold for it.
+ */
+public final class ConnectionReplacedEvent {
+
+    private final String reason;
+
+    ConnectionReplacedEvent(String reason) {
+        this.reason = reason;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionReplacedEvent(" + reason + ")";
+    }
+}
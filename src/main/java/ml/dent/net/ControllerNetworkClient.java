@@ -2,32 +2,49 @@ package ml.dent.net;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
-import javafx.beans.InvalidationListener;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
 import javafx.beans.property.*;
 import ml.dent.app.StatusHandler;
-import ml.dent.util.DaemonThreadFactory;
+import ml.dent.util.LatencyHistogram;
+import ml.dent.net.ProbeWindow.Probe;
 import ml.dent.util.Markers;
+import ml.dent.util.UIUtil;
 
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class ControllerNetworkClient extends SimpleNetworkClient {
 
-    private ScheduledThreadPoolExecutor pingScheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory());
-    private ScheduledFuture<?>          pingFuture;
-
     private StatusHandler logger = StatusHandler.getInstance();
 
     public ControllerNetworkClient(String host, int port) {
-        super(host, port, '0');
-        pingScheduler.setRemoveOnCancelPolicy(true);
+        this(host, port, EventLoopProvider.getControl());
+    }
+
+    public ControllerNetworkClient(String host, int port, EventLoopProvider eventLoopProvider) {
+        this(host, port, eventLoopProvider, UIUtil::runOnJFXThread);
+    }
+
+    /**
+     * @param uiExecutor runs the updates of the liveness properties, which outside of tests is the JavaFX thread
+     */
+    ControllerNetworkClient(String host, int port, EventLoopProvider eventLoopProvider, Executor uiExecutor) {
+        super(host, port, '0', false, eventLoopProvider);
+        this.uiExecutor = uiExecutor;
+        // Commands are tiny, so a stalled server is noticed after a few kilobytes, and only the newest of each
+        // command is still worth sending once it recovers
+        setWriteBufferWaterMark(2 * 1024, 8 * 1024);
+        setOutboundQueue(16, OverflowPolicy.COALESCE_LATEST);
     }
 
     @Override
     public ChannelFuture connect() {
-        return super.connect(new ControllerOutboundHandler(), new ControllerInboundHandler());
+        return connect(new ChannelHandler[0]);
     }
 
     @Override
@@ -40,21 +57,68 @@ public class ControllerNetworkClient extends SimpleNetworkClient {
         return super.connect(newHandlers);
     }
 
+    private final CommandEncoder encoder = new CommandEncoder();
+    private final Executor       uiExecutor;
+
+    private DoubleProperty lastStopLatency  = new SimpleDoubleProperty(-1);
+    private double         stopLatencyAlarm = 50;
+
+    /**
+     * Sends STOP through the urgent lane, dropping any jog commands that are still held back. The time from this call
+     * until the STOP byte has been written to the socket is reported by {@link #lastStopLatencyProperty()}.
+     */
     public void stopMill() {
-        writeAndFlush(Markers.STOP);
+        long requested = System.nanoTime();
+        writeUrgent(encoder.encode(Markers.STOP)).addListener(future -> {
+            if (!future.isSuccess()) {
+                return;
+            }
+            double latency = (System.nanoTime() - requested) / 1e6;
+            lastStopLatency.set(latency);
+            if (latency > stopLatencyAlarm) {
+                logger.offerStatus(String.format("STOP took %.1fms to reach the socket", latency), StatusHandler.WARNING);
+            }
+        });
+    }
+
+    /**
+     * Only jogs are dropped by a STOP, speed and axis changes still need to reach the mill
+     */
+    @Override
+    protected boolean isSupersededByUrgent(Object msg) {
+        if (!(msg instanceof ByteBuf)) {
+            return false;
+        }
+        ByteBuf buf = (ByteBuf) msg;
+        return buf.isReadable() && buf.getByte(buf.readerIndex()) == Markers.JOG;
+    }
+
+    /**
+     * @return Milliseconds from the last call to {@link #stopMill()} until STOP was written to the socket, -1 if no
+     * STOP has been sent yet
+     */
+    public ReadOnlyDoubleProperty lastStopLatencyProperty() {
+        return lastStopLatency;
+    }
+
+    /**
+     * @param millis a STOP latency above this is reported as a warning
+     */
+    public void setStopLatencyAlarm(double millis) {
+        stopLatencyAlarm = millis;
+    }
+
+    public double getStopLatencyAlarm() {
+        return stopLatencyAlarm;
     }
 
     public void jogMill(int direction) {
         int dir = (int) Math.signum(direction);
-        write(Markers.JOG);
-        write((byte) dir);
-        flush();
+        writeCommand(Markers.JOG, (byte) dir);
     }
 
     public void setSpeed(int speed) {
-        write(Markers.SPEED);
-        write((byte) speed);
-        flush();
+        writeCommand(Markers.SPEED, (byte) speed);
     }
 
     public void setAxis(String axis) {
@@ -74,94 +138,334 @@ public class ControllerNetworkClient extends SimpleNetworkClient {
                 break;
         }
 
-        write(Markers.AXIS);
-        write((byte) axisNum);
-        flush();
+        writeCommand(Markers.AXIS, (byte) axisNum);
+    }
+
+    /**
+     * Writes a command and its argument as a single frame with one write and one flush
+     */
+    private void writeCommand(byte marker, byte argument) {
+        if (!isConnectionActive()) {
+            throw new IllegalStateException("Cannot write to non-active Channel!");
+        }
+        writeAndFlush(encoder.encode(getChannel().alloc(), marker, argument));
+    }
+
+    /**
+     * @return The encoder commands are written with, which counts the commands and the buffers allocated for them
+     */
+    public CommandEncoder getCommandEncoder() {
+        return encoder;
     }
 
     private BooleanProperty isMillAccessible = new SimpleBooleanProperty(false);
 
+    /**
+     * @return Whether the mill has been heard from within the unreachable deadline, updated on the JavaFX thread
+     */
     public ReadOnlyBooleanProperty millAccessProperty() {
         return isMillAccessible;
     }
 
-    private BooleanProperty pingSent     = new SimpleBooleanProperty(false);
-    private DoubleProperty  lastPingTime = new SimpleDoubleProperty();
+    private DoubleProperty lastPingTime = new SimpleDoubleProperty();
+
+    private volatile boolean millReachable;
+    private volatile double  latestRtt = -1;
 
+    private final AtomicBoolean publishScheduled = new AtomicBoolean();
+
+    /**
+     * Hands the latest liveness state to the JavaFX thread. However often the state changes in between, the UI only
+     * gets one update per pulse.
+     */
+    private void publishLiveness() {
+        if (publishScheduled.compareAndSet(false, true)) {
+            uiExecutor.execute(() -> {
+                publishScheduled.set(false);
+                isMillAccessible.set(millReachable);
+                if (latestRtt >= 0) {
+                    lastPingTime.set(latestRtt);
+                }
+            });
+        }
+    }
+
+    private long keepaliveInterval   = TimeUnit.SECONDS.toNanos(3);
+    private long unreachableDeadline = TimeUnit.SECONDS.toNanos(6);
+
+    /**
+     * Sets when the mill is probed and when it is given up on, applied on the next connection. Nothing is sent while
+     * the mill is sending data, since that already shows it is there.
+     *
+     * @param interval a probe is sent once nothing has been received from the mill for this long
+     * @param deadline the mill is considered unreachable once nothing has been received from it for this long
+     */
+    public void setKeepalive(long interval, long deadline, TimeUnit unit) {
+        if (deadline < interval) {
+            throw new IllegalArgumentException("Unreachable deadline can not be shorter than the keepalive interval");
+        }
+        keepaliveInterval = unit.toNanos(interval);
+        unreachableDeadline = unit.toNanos(deadline);
+    }
+
+    public long getKeepaliveInterval(TimeUnit unit) {
+        return unit.convert(keepaliveInterval, TimeUnit.NANOSECONDS);
+    }
+
+    public long getUnreachableDeadline(TimeUnit unit) {
+        return unit.convert(unreachableDeadline, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return The round trip time of the last answered probe in milliseconds
+     */
     public ReadOnlyDoubleProperty lastPingTimeProperty() {
         return lastPingTime;
     }
 
-    public boolean awaitNextPing(long timeout) throws InterruptedException {
-        CountDownLatch wait = new CountDownLatch(1);
-        InvalidationListener pingChange = (listener) -> {
-            if (!pingSent.get()) {
-                wait.countDown();
-            }
-        };
-        pingSent.addListener(pingChange);
-        boolean recvPing = wait.await(timeout, TimeUnit.MILLISECONDS);
-        pingSent.removeListener(pingChange);
-        return recvPing;
+    private final LatencyHistogram rttHistogram = new LatencyHistogram(60, TimeUnit.SECONDS, 6);
+
+    private volatile int                      maxProbesInFlight = 4;
+    private volatile ControllerInboundHandler activeHandler;
+
+    private final AtomicLong probeSequence  = new AtomicLong();
+    private final AtomicLong lostProbes     = new AtomicLong();
+    private final AtomicLong unmatchedPings = new AtomicLong();
+
+    /**
+     * Sends a ping to the mill and measures the time until it answers. Several probes can be in flight at once. The
+     * mill answers pings in order without echoing anything back, so responses are matched to probes oldest first. A
+     * lost probe fails every other probe in flight and holds back new ones for a while, see {@link ProbeWindow}.
+     * Round trip times are also recorded in the histogram returned by {@link #getRttStatistics()}.
+     *
+     * @param timeout how long to wait for the answer before the probe is counted as lost
+     * @return A future completed with the round trip time in milliseconds, or exceptionally with a
+     * {@link TimeoutException} if the mill did not answer in time
+     */
+    public CompletableFuture<Double> probe(long timeout, TimeUnit unit) {
+        CompletableFuture<Double> result = new CompletableFuture<>();
+        ControllerInboundHandler handler = activeHandler;
+        if (!isConnectionActive() || handler == null) {
+            result.completeExceptionally(new IllegalStateException("Cannot write to non-active Channel!"));
+            return result;
+        }
+        Probe probe = new Probe(probeSequence.incrementAndGet(), result, unit.toNanos(timeout));
+        handler.ctx.executor().execute(() -> handler.send(probe));
+        return result;
+    }
+
+    /**
+     * @param maxProbesInFlight probes sent while this many are waiting for an answer fail right away
+     */
+    public void setMaxProbesInFlight(int maxProbesInFlight) {
+        this.maxProbesInFlight = maxProbesInFlight;
+    }
+
+    public int getMaxProbesInFlight() {
+        return maxProbesInFlight;
+    }
+
+    /**
+     * @return Round trip time percentiles, maximum and jitter over the last minute
+     */
+    public LatencyHistogram.Snapshot getRttStatistics() {
+        return rttHistogram.snapshot();
+    }
+
+    /**
+     * @return The number of probes the mill did not answer in time, including the ones given up on along with them
+     */
+    public long getLostProbeCount() {
+        return lostProbes.get();
+    }
+
+    /**
+     * @return The number of ping responses that arrived with no probe waiting for them or while probes were held back
+     * after a loss, usually answers to probes that had already timed out
+     */
+    public long getUnmatchedPingCount() {
+        return unmatchedPings.get();
+    }
+
+    // The live connection counts unknown bytes on its own and adds them to these this often
+    private static final long UNKNOWN_PUBLISH_MILLIS = 1000;
+
+    private final AtomicLongArray unknownBytes = new AtomicLongArray(256);
+
+    /**
+     * @return The number of bytes received that are not a known marker, up to a second behind
+     */
+    public long getUnknownByteCount() {
+        long total = 0;
+        for (int i = 0; i < unknownBytes.length(); i++) {
+            total += unknownBytes.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @return The number of times the given byte was received without being a known marker, up to a second behind
+     */
+    public long getUnknownByteCount(byte b) {
+        return unknownBytes.get(b & 0xff);
     }
 
     private class ControllerInboundHandler extends ChannelInboundHandlerAdapter {
 
-        private long count;
-        private long pingSentTime;
+        private final ProbeWindow probes = new ProbeWindow(lostProbes, unmatchedPings);
+
+        private final MarkerDispatcher dispatcher = new MarkerDispatcher()
+                .on(Markers.PING_REQUEST, this::onPingRequest)
+                .on(Markers.PING_RESPONSE, this::onPingResponse);
+
+        private ChannelHandlerContext ctx;
+        private IdleStateHandler      keepalive;
+        private ScheduledFuture<?>    deadlineCheck;
+        private ScheduledFuture<?>    unknownPublish;
 
+        private long lastRead;
+
+        /**
+         * Only reached once the connection is this client's channel, standby connections are neither probed nor
+         * watched until they take over
+         */
         @Override
         public void channelActive(ChannelHandlerContext ctx) throws Exception {
-            count = 0;
-            pingFuture = pingScheduler.scheduleAtFixedRate(() -> {
-                if (pingSent.get()) {
-                    isMillAccessible.set(false);
-                }
-                if (count % 2 == 0 || !pingSent.get() && isConnectionActive()) {
-                    count = 0;
-                    pingSentTime = System.currentTimeMillis();
-                    writeAndFlush(Markers.PING_REQUEST);
-                    pingSent.set(true);
-                }
-                count++;
-            }, 0L, 3L, TimeUnit.SECONDS);
-
+            this.ctx = ctx;
+            activeHandler = this;
+            lastRead = System.nanoTime();
+            keepalive = new IdleStateHandler(keepaliveInterval, 0, 0, TimeUnit.NANOSECONDS);
+            ctx.pipeline().addBefore(ctx.name(), null, keepalive);
+            deadlineCheck = ctx.executor().schedule(this::checkDeadline, unreachableDeadline, TimeUnit.NANOSECONDS);
+            unknownPublish = ctx.executor().scheduleAtFixedRate(() -> dispatcher.publishUnknownCounts(unknownBytes),
+                    UNKNOWN_PUBLISH_MILLIS, UNKNOWN_PUBLISH_MILLIS, TimeUnit.MILLISECONDS);
+            // Find out right away whether the mill is there instead of waiting for the first idle period
+            send(keepaliveProbe());
             super.channelActive(ctx);
         }
 
+        /**
+         * Runs once the deadline has passed since the last read as of when it was scheduled. Reads in between move the
+         * deadline, so it is checked again at the new one.
+         */
+        private void checkDeadline() {
+            long remaining = unreachableDeadline - (System.nanoTime() - lastRead);
+            if (remaining > 0) {
+                deadlineCheck = ctx.executor().schedule(this::checkDeadline, remaining, TimeUnit.NANOSECONDS);
+                return;
+            }
+            // The next read arms it again
+            deadlineCheck = null;
+            if (millReachable) {
+                millReachable = false;
+                publishLiveness();
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof IdleStateEvent && ((IdleStateEvent) evt).state() == IdleState.READER_IDLE) {
+                // Skipped while probes are held back after a loss, the next idle period tries again
+                if (probes.size() < maxProbesInFlight && probes.quietRemaining(System.nanoTime()) == 0) {
+                    send(keepaliveProbe());
+                }
+            }
+            if (evt instanceof ConnectionReplacedEvent) {
+                // The new connection's handler has taken over, only the probes sent on this one are lost
+                failInFlight();
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
         @Override
         public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-            pingFuture.cancel(true);
-            pingSent.set(false);
-            isMillAccessible.set(false);
+            failInFlight();
+            millReachable = false;
+            publishLiveness();
             super.channelInactive(ctx);
         }
 
-        @Override
-        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-            ByteBuf buffer = (ByteBuf) msg;
-            byte[] bytes = new byte[buffer.readableBytes()];
-            buffer.readBytes(bytes);
-
-            for (byte b : bytes) {
-                if (b == Markers.PING_REQUEST) {
-                    logger.offerStatus("Recv ping request", StatusHandler.MORE);
-                    writeAndFlush(Markers.PING_RESPONSE);
-                } else if (b == Markers.PING_RESPONSE) {
-                    logger.offerStatus("Recv ping response", StatusHandler.MORE);
-                    if (pingSent.get()) {
-                        lastPingTime.set(System.currentTimeMillis() - pingSentTime);
-                        pingSent.set(false);
-                    }
-                    isMillAccessible.set(true);
-                } else {
-                    logger.offerStatus("Recv unknown byte: " + b, StatusHandler.MORE);
+        private void failInFlight() {
+            if (activeHandler == this) {
+                activeHandler = null;
+            }
+            if (deadlineCheck != null) {
+                deadlineCheck.cancel(false);
+                deadlineCheck = null;
+            }
+            if (unknownPublish != null) {
+                unknownPublish.cancel(false);
+                unknownPublish = null;
+                dispatcher.publishUnknownCounts(unknownBytes);
+            }
+            if (keepalive != null) {
+                if (ctx.pipeline().context(keepalive) != null) {
+                    ctx.pipeline().remove(keepalive);
                 }
+                keepalive = null;
+            }
+            probes.failAll(new ClosedChannelException());
+        }
+
+        private Probe keepaliveProbe() {
+            return new Probe(probeSequence.incrementAndGet(), new CompletableFuture<>(), keepaliveInterval);
+        }
+
+        /**
+         * Runs on the event loop
+         */
+        private void send(Probe probe) {
+            if (activeHandler != this || !ctx.channel().isActive()) {
+                probe.result.completeExceptionally(new ClosedChannelException());
+                return;
             }
+            long quiet = probes.quietRemaining(System.nanoTime());
+            if (quiet > 0) {
+                ctx.executor().schedule(() -> send(probe), quiet, TimeUnit.NANOSECONDS);
+                return;
+            }
+            if (probes.size() >= maxProbesInFlight) {
+                probe.result.completeExceptionally(new IllegalStateException("Too many probes in flight"));
+                return;
+            }
+            probe.timeout = ctx.executor().schedule(() -> probes.timedOut(probe, System.nanoTime()),
+                    probe.timeoutNanos, TimeUnit.NANOSECONDS);
+            probes.add(probe, System.nanoTime());
+            ctx.writeAndFlush(encoder.encode(Markers.PING_REQUEST));
+        }
 
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            lastRead = System.nanoTime();
+            if (deadlineCheck == null && activeHandler == this) {
+                deadlineCheck = ctx.executor().schedule(this::checkDeadline, unreachableDeadline, TimeUnit.NANOSECONDS);
+            }
+            if (!millReachable) {
+                millReachable = true;
+                publishLiveness();
+            }
+            dispatcher.dispatch(ctx, (ByteBuf) msg);
             super.channelRead(ctx, msg);
         }
 
+        private void onPingRequest(ChannelHandlerContext ctx, byte marker) {
+            logger.offerStatus("Recv ping request", StatusHandler.MORE);
+            ctx.writeAndFlush(encoder.encode(Markers.PING_RESPONSE));
+        }
+
+        private void onPingResponse(ChannelHandlerContext ctx, byte marker) {
+            long received = System.nanoTime();
+            logger.offerStatus("Recv ping response", StatusHandler.MORE);
+            Probe probe = probes.answer(received);
+            if (probe != null) {
+                long rtt = received - probe.sent;
+                rttHistogram.record(rtt);
+                latestRtt = rtt / 1e6;
+                publishLiveness();
+                probe.result.complete(rtt / 1e6);
+            }
+        }
+
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
             cause.printStackTrace();
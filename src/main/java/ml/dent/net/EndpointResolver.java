@@ -0,0 +1,214 @@
+package ml.dent.net;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import ml.dent.util.DaemonThreadFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Resolves server addresses off the calling thread and caches them for a limited time, and keeps track of how long
+ * connecting to each resolved address takes.
+ * <p>
+ * When a host has several addresses and none of them is known to work, network clients race them against each other
+ * in the order they are preferred, starting the next one whenever the previous one has not connected within the race
+ * delay or has failed, happy eyeballs style. Later lookups put the addresses that connected fastest first.
+ */
+public class EndpointResolver {
+
+    private static final EndpointResolver DEFAULT = new EndpointResolver(60, TimeUnit.SECONDS);
+
+    /**
+     * @return The resolver that network clients use
+     */
+    public static EndpointResolver getDefault() {
+        return DEFAULT;
+    }
+
+    // A lookup that hangs only ties up one of these threads, lookups beyond the queue fail right away
+    private static final int MAX_LOOKUP_THREADS = 4;
+    private static final int MAX_QUEUED_LOOKUPS = 64;
+
+    private final ThreadPoolExecutor lookups = new ThreadPoolExecutor(MAX_LOOKUP_THREADS, MAX_LOOKUP_THREADS,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(MAX_QUEUED_LOOKUPS), new DaemonThreadFactory());
+
+    private final ConcurrentHashMap<String, Lookup>                   cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, EndpointStats> stats = new ConcurrentHashMap<>();
+
+    private final long ttl;
+
+    private volatile long raceDelay = TimeUnit.MILLISECONDS.toNanos(250);
+
+    /**
+     * @param ttl how long a lookup is reused before the host is resolved again
+     */
+    public EndpointResolver(long ttl, TimeUnit unit) {
+        this.ttl = unit.toNanos(ttl);
+        lookups.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Looks up every address of the host, or reuses the last lookup if it has not expired yet.
+     *
+     * @param executor notified of the result
+     * @return A future completed with the addresses, the ones that connected fastest before first
+     */
+    public Future<List<InetSocketAddress>> resolve(String host, int port, EventExecutor executor) {
+        Lookup lookup = cache.get(host);
+        if (lookup != null && System.nanoTime() < lookup.expires) {
+            return executor.newSucceededFuture(order(lookup.addresses, port));
+        }
+        Promise<List<InetSocketAddress>> promise = executor.newPromise();
+        try {
+            lookups.execute(() -> {
+                try {
+                    InetAddress[] addresses = InetAddress.getAllByName(host);
+                    cache.put(host, new Lookup(addresses, System.nanoTime() + ttl));
+                    promise.trySuccess(order(addresses, port));
+                } catch (Throwable t) {
+                    // Anything else, such as a SecurityException, would leave the connection waiting forever
+                    promise.tryFailure(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            promise.tryFailure(e);
+        }
+        return promise;
+    }
+
+    /**
+     * Forgets the cached addresses of the host, so the next connection looks it up again
+     */
+    public void invalidate(String host) {
+        cache.remove(host);
+    }
+
+    /**
+     * @return Whether the endpoint connected the last time it was tried, so racing it against others is not needed
+     */
+    public boolean isKnownGood(InetSocketAddress endpoint) {
+        EndpointStats s = stats.get(endpoint);
+        return s != null && s.consecutiveFailures == 0;
+    }
+
+    /**
+     * Sets how long a connection to one address gets before the next address is tried alongside it
+     */
+    public void setRaceDelay(long delay, TimeUnit unit) {
+        raceDelay = unit.toNanos(delay);
+    }
+
+    public long getRaceDelay(TimeUnit unit) {
+        return unit.convert(raceDelay, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordConnect(InetSocketAddress endpoint, long nanos) {
+        statsFor(endpoint).connected(nanos);
+    }
+
+    public void recordFailure(InetSocketAddress endpoint) {
+        statsFor(endpoint).failed();
+    }
+
+    /**
+     * @return The statistics of every endpoint that has been connected to
+     */
+    public Map<InetSocketAddress, EndpointStats> getEndpointStats() {
+        return Collections.unmodifiableMap(stats);
+    }
+
+    private EndpointStats statsFor(InetSocketAddress endpoint) {
+        EndpointStats s = stats.get(endpoint);
+        if (s == null) {
+            EndpointStats existing = stats.putIfAbsent(endpoint, s = new EndpointStats());
+            if (existing != null) {
+                s = existing;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Known working endpoints come first, fastest first, then untried ones in lookup order, then the ones that failed
+     */
+    private List<InetSocketAddress> order(InetAddress[] addresses, int port) {
+        List<InetSocketAddress> endpoints = new ArrayList<>(addresses.length);
+        for (InetAddress address : addresses) {
+            endpoints.add(new InetSocketAddress(address, port));
+        }
+        endpoints.sort(Comparator.comparingDouble(this::rank));
+        return endpoints;
+    }
+
+    private double rank(InetSocketAddress endpoint) {
+        EndpointStats s = stats.get(endpoint);
+        if (s != null && s.consecutiveFailures > 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (s == null || s.connects == 0) {
+            // The sort is stable, so untried endpoints keep the order of the lookup
+            return Double.MAX_VALUE;
+        }
+        return s.averageConnectTime;
+    }
+
+    private static class Lookup {
+        private final InetAddress[] addresses;
+        private final long          expires;
+
+        private Lookup(InetAddress[] addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+
+    public static class EndpointStats {
+        private volatile double averageConnectTime;
+        private volatile double lastConnectTime;
+        private volatile long   connects;
+        private volatile long   failures;
+        private volatile int    consecutiveFailures;
+
+        private synchronized void connected(long nanos) {
+            double millis = nanos / 1e6;
+            // Exponentially weighted, so an endpoint that got slower loses its place after a few connections
+            averageConnectTime = connects == 0 ? millis : averageConnectTime * 0.7 + millis * 0.3;
+            lastConnectTime = millis;
+            connects++;
+            consecutiveFailures = 0;
+        }
+
+        private synchronized void failed() {
+            failures++;
+            consecutiveFailures++;
+        }
+
+        /**
+         * @return The weighted average time in milliseconds a TCP connection to the endpoint took
+         */
+        public double getAverageConnectTime() {
+            return averageConnectTime;
+        }
+
+        public double getLastConnectTime() {
+            return lastConnectTime;
+        }
+
+        public long getConnectCount() {
+            return connects;
+        }
+
+        public long getFailureCount() {
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("avg %.1fms, last %.1fms, %d connects, %d failures", averageConnectTime, lastConnectTime, connects, failures);
+        }
+    }
+}
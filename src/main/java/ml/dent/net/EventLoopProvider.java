@@ -0,0 +1,273 @@
+package ml.dent.net;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.ImmediateEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import ml.dent.util.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out a reference counted {@link EventLoopGroup} that can be shared between network clients, so that every
+ * client does not need its own set of threads. The group is created when it is first acquired and shut down once the
+ * last holder releases it.
+ * <p>
+ * The native epoll transport is used when it is available, otherwise this falls back to NIO.
+ * <p>
+ * Besides the default provider there is a control provider with a single high priority thread, meant for the small
+ * and latency sensitive command traffic, and a bulk provider for video. Keeping them apart means a burst of video
+ * reads can never hold up a STOP waiting to be written, which the loop latency statistics of the two providers show.
+ * Loop latency is only measured while {@link #setLoopProbing(boolean)} is on and the group is acquired.
+ */
+public class EventLoopProvider {
+
+    private static final long PROBE_PERIOD = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final EventLoopProvider DEFAULT = new EventLoopProvider("network", Math.min(2, Runtime.getRuntime().availableProcessors()));
+    private static final EventLoopProvider CONTROL = new EventLoopProvider("control", 1, Thread.MAX_PRIORITY);
+    private static final EventLoopProvider BULK    = new EventLoopProvider("video", Math.min(2, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * @return The provider that network clients use unless they are constructed with a different one
+     */
+    public static EventLoopProvider getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return The provider for control traffic, a single event loop running at the highest thread priority
+     */
+    public static EventLoopProvider getControl() {
+        return CONTROL;
+    }
+
+    /**
+     * @return The provider for bulk traffic such as video, kept apart from the control loop
+     */
+    public static EventLoopProvider getBulk() {
+        return BULK;
+    }
+
+    private final String name;
+    private final int    threads;
+    private final int    priority;
+
+    private EventLoopGroup  group;
+    private int             refCount;
+    private boolean         probing;
+    private List<LoopProbe> probes = new ArrayList<>();
+
+    /**
+     * @param name    prefix for the names of the event loop threads
+     * @param threads the number of event loop threads in the group
+     */
+    public EventLoopProvider(String name, int threads) {
+        this(name, threads, Thread.NORM_PRIORITY);
+    }
+
+    /**
+     * @param name     prefix for the names of the event loop threads
+     * @param threads  the number of event loop threads in the group
+     * @param priority the priority of the event loop threads
+     */
+    public EventLoopProvider(String name, int threads, int priority) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Event loop group needs at least one thread");
+        }
+        this.name = name;
+        this.threads = threads;
+        this.priority = priority;
+    }
+
+    /**
+     * @return Whether the native epoll transport is used instead of NIO
+     */
+    public boolean isNative() {
+        return Epoll.isAvailable();
+    }
+
+    /**
+     * @return The channel class matching the transport of the event loop group
+     */
+    public Class<? extends SocketChannel> channelClass() {
+        return isNative() ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    /**
+     * Gets the shared event loop group, creating it if this is the first holder. Every call must be matched by a call
+     * to {@link #release()}.
+     */
+    public synchronized EventLoopGroup acquire() {
+        if (group == null) {
+            DefaultThreadFactory threadFactory = new DefaultThreadFactory(name, true, priority);
+            group = isNative() ? new EpollEventLoopGroup(threads, threadFactory) : new NioEventLoopGroup(threads, threadFactory);
+            probes = new ArrayList<>();
+            for (EventExecutor loop : group) {
+                probes.add(new LoopProbe(loop));
+            }
+            if (probing) {
+                startProbes();
+            }
+        }
+        refCount++;
+        return group;
+    }
+
+    /**
+     * Gives up one reference to the event loop group, shutting it down if this was the last one.
+     *
+     * @return A {@link Future} that is notified once the group has shut down, or that is already complete if the group
+     * is still in use.
+     */
+    public synchronized Future<?> release() {
+        if (refCount <= 0) {
+            throw new IllegalStateException("Event loop group released more times than it was acquired");
+        }
+        refCount--;
+        if (refCount > 0) {
+            return ImmediateEventExecutor.INSTANCE.newSucceededFuture(null);
+        }
+        stopProbes();
+        Future<?> shutdown = group.shutdownGracefully(0, 2, TimeUnit.SECONDS);
+        group = null;
+        return shutdown;
+    }
+
+    /**
+     * Turns the loop latency measurements on or off. While on, every event loop runs a probe every 100ms for as long
+     * as the group is acquired, so leave it off unless the statistics are being watched.
+     */
+    public synchronized void setLoopProbing(boolean probing) {
+        this.probing = probing;
+        if (group == null) {
+            return;
+        }
+        if (probing) {
+            startProbes();
+        } else {
+            stopProbes();
+        }
+    }
+
+    public synchronized boolean isLoopProbing() {
+        return probing;
+    }
+
+    private void startProbes() {
+        for (LoopProbe probe : probes) {
+            probe.start();
+        }
+    }
+
+    private void stopProbes() {
+        for (LoopProbe probe : probes) {
+            probe.stop();
+        }
+    }
+
+    /**
+     * @return The number of event loop threads currently running for this provider
+     */
+    public synchronized int getThreadCount() {
+        return group == null ? 0 : threads;
+    }
+
+    /**
+     * @return The number of clients and other users currently holding on to the event loop group
+     */
+    public synchronized int getReferenceCount() {
+        return refCount;
+    }
+
+    /**
+     * The loop latency is how late a periodic task ran on an event loop, which is the time the loop was busy with the
+     * iteration it was in when the task became due.
+     *
+     * @return The last measured loop latency of every event loop in nanoseconds
+     */
+    public synchronized List<Long> getLoopLatencies() {
+        List<Long> latencies = new ArrayList<>(probes.size());
+        for (LoopProbe probe : probes) {
+            latencies.add(probe.lastLatency);
+        }
+        return latencies;
+    }
+
+    /**
+     * @return The highest loop latency any event loop has had in nanoseconds
+     */
+    public synchronized long getMaxLoopLatency() {
+        long max = 0;
+        for (LoopProbe probe : probes) {
+            max = Math.max(max, probe.maxLatency);
+        }
+        return max;
+    }
+
+    /**
+     * @return The loop latency percentiles of every event loop over the last minute
+     */
+    public synchronized List<LatencyHistogram.Snapshot> getLoopLatencyStatistics() {
+        List<LatencyHistogram.Snapshot> statistics = new ArrayList<>(probes.size());
+        for (LoopProbe probe : probes) {
+            statistics.add(probe.histogram.snapshot());
+        }
+        return statistics;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private static class LoopProbe implements Runnable {
+
+        private final LatencyHistogram histogram = new LatencyHistogram(1, TimeUnit.MINUTES, 6);
+        private final EventExecutor    loop;
+
+        private ScheduledFuture<?> future;
+        private long               expected;
+
+        private volatile long lastLatency;
+        private volatile long maxLatency;
+
+        private LoopProbe(EventExecutor loop) {
+            this.loop = loop;
+        }
+
+        private void start() {
+            if (future == null) {
+                expected = System.nanoTime() + PROBE_PERIOD;
+                future = loop.scheduleAtFixedRate(this, PROBE_PERIOD, PROBE_PERIOD, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void stop() {
+            if (future != null) {
+                future.cancel(false);
+                future = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            long latency = Math.max(0, System.nanoTime() - expected);
+            expected += PROBE_PERIOD;
+            lastLatency = latency;
+            histogram.record(latency);
+            if (latency > maxLatency) {
+                maxLatency = latency;
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package ml.dent.net;
+
+/**
+ * How long each phase of connecting to the bounce server took, from the call to connect until the server reported
+ * the channel as READY. Phases that did not happen, such as the proxy phase when no proxy is used, are reported as -1.
+ */
+public class HandshakeTimings {
+
+    private final long    start;
+    private final boolean pipelined;
+
+    private volatile long active;
+    private volatile long proxyEstablished;
+    private volatile long versionReceived;
+    private volatile long ready;
+
+    HandshakeTimings(boolean pipelined) {
+        this.start = System.nanoTime();
+        this.pipelined = pipelined;
+    }
+
+    void markActive() {
+        if (active == 0) {
+            active = System.nanoTime();
+        }
+    }
+
+    void markProxyEstablished() {
+        proxyEstablished = System.nanoTime();
+    }
+
+    void markVersionReceived() {
+        versionReceived = System.nanoTime();
+    }
+
+    void markReady() {
+        ready = System.nanoTime();
+    }
+
+    /**
+     * @return Whether the handshake messages were sent without waiting for the server's replies
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * @return Milliseconds from the call to connect until the TCP connection was established
+     */
+    public double getConnectTime() {
+        return between(start, active);
+    }
+
+    /**
+     * @return Milliseconds from the TCP connection until the proxy accepted the tunnel
+     */
+    public double getProxyTime() {
+        return between(active, proxyEstablished);
+    }
+
+    /**
+     * @return Milliseconds from the previous phase until the bounce server version string arrived
+     */
+    public double getVersionTime() {
+        return between(proxyEstablished != 0 ? proxyEstablished : active, versionReceived);
+    }
+
+    /**
+     * @return Milliseconds from the version string until the bounce server reported READY
+     */
+    public double getReadyTime() {
+        return between(versionReceived, ready);
+    }
+
+    /**
+     * @return Milliseconds from the call to connect until the bounce server reported READY
+     */
+    public double getTotalTime() {
+        return between(start, ready);
+    }
+
+    private static double between(long from, long to) {
+        if (from == 0 || to == 0) {
+            return -1;
+        }
+        return (to - from) / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("connect %.1fms, proxy %.1fms, version %.1fms, ready %.1fms, total %.1fms%s",
+                getConnectTime(), getProxyTime(), getVersionTime(), getReadyTime(), getTotalTime(), pipelined ? " (pipelined)" : "");
+    }
+}
@@ -0,0 +1,67 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.ByteProcessor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Scans inbound buffers in place and calls the handler registered for each marker byte. Bytes without a handler are
+ * only counted, per byte value, in plain counters owned by the event loop that dispatches. The counts are added to
+ * shared totals by {@link #publishUnknownCounts(AtomicLongArray)}, which the owner calls every so often.
+ */
+class MarkerDispatcher implements ByteProcessor {
+
+    interface MarkerHandler {
+        void handle(ChannelHandlerContext ctx, byte marker) throws Exception;
+    }
+
+    private final MarkerHandler[] handlers      = new MarkerHandler[256];
+    private final long[]          unknownCounts = new long[256];
+
+    private ChannelHandlerContext ctx;
+
+    MarkerDispatcher on(byte marker, MarkerHandler handler) {
+        handlers[marker & 0xff] = handler;
+        return this;
+    }
+
+    /**
+     * Dispatches every readable byte of the buffer without changing its reader index
+     */
+    void dispatch(ChannelHandlerContext ctx, ByteBuf buf) {
+        this.ctx = ctx;
+        try {
+            buf.forEachByte(this);
+        } finally {
+            this.ctx = null;
+        }
+    }
+
+    @Override
+    public boolean process(byte b) throws Exception {
+        MarkerHandler handler = handlers[b & 0xff];
+        if (handler == null) {
+            unknownCounts[b & 0xff]++;
+        } else {
+            handler.handle(ctx, b);
+        }
+        return true;
+    }
+
+    /**
+     * Adds the bytes counted since the last call to the totals and starts counting from zero again. Must be called
+     * from the thread that dispatches.
+     *
+     * @param totals 256 counters indexed by the unsigned value of the unknown byte
+     */
+    void publishUnknownCounts(AtomicLongArray totals) {
+        for (int i = 0; i < unknownCounts.length; i++) {
+            if (unknownCounts[i] != 0) {
+                totals.addAndGet(i, unknownCounts[i]);
+                unknownCounts[i] = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package ml.dent.net;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The probes of one connection that are waiting for an answer. The mill answers pings in order without echoing
+ * anything back, so answers are matched to probes oldest first. That only holds while no answer is missing: once a
+ * probe times out, its answer may still turn up and would be taken for the answer to a newer probe. So a lost probe
+ * gives up on every probe in flight, and answers are discarded for as long again as the lost probe waited before new
+ * probes are sent. Answers later than that are still miscounted.
+ * <p>
+ * Not thread safe, only used from the connection's event loop.
+ */
+class ProbeWindow {
+
+    static class Probe {
+        final long                      sequence;
+        final CompletableFuture<Double> result;
+        final long                      timeoutNanos;
+
+        long               sent;
+        ScheduledFuture<?> timeout;
+
+        Probe(long sequence, CompletableFuture<Double> result, long timeoutNanos) {
+            this.sequence = sequence;
+            this.result = result;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        private void cancelTimeout() {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+    }
+
+    private final ArrayDeque<Probe> inFlight = new ArrayDeque<>();
+
+    private final AtomicLong lostProbes;
+    private final AtomicLong unmatchedAnswers;
+
+    private boolean quiet;
+    private long    quietUntil;
+
+    ProbeWindow(AtomicLong lostProbes, AtomicLong unmatchedAnswers) {
+        this.lostProbes = lostProbes;
+        this.unmatchedAnswers = unmatchedAnswers;
+    }
+
+    int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return How long to wait before sending a probe, 0 unless a probe was lost a moment ago
+     */
+    long quietRemaining(long now) {
+        if (quiet && quietUntil - now > 0) {
+            return quietUntil - now;
+        }
+        quiet = false;
+        return 0;
+    }
+
+    /**
+     * Records the probe as sent now. Its timeout should call {@link #timedOut(Probe, long)}.
+     */
+    void add(Probe probe, long now) {
+        probe.sent = now;
+        inFlight.add(probe);
+    }
+
+    /**
+     * Matches an answer received now to the oldest probe in flight. The probe's timeout is cancelled, its result is
+     * left to the caller.
+     *
+     * @return The probe answered, or null if the answer could not be matched
+     */
+    Probe answer(long now) {
+        Probe probe = quietRemaining(now) > 0 ? null : inFlight.poll();
+        if (probe == null) {
+            unmatchedAnswers.incrementAndGet();
+            return null;
+        }
+        probe.cancelTimeout();
+        return probe;
+    }
+
+    /**
+     * Fails the probe and every other probe in flight, answers to them can no longer be told apart from answers to
+     * the probes sent next
+     */
+    void timedOut(Probe lost, long now) {
+        if (!inFlight.contains(lost)) {
+            return;
+        }
+        Probe probe;
+        while ((probe = inFlight.poll()) != null) {
+            probe.cancelTimeout();
+            lostProbes.incrementAndGet();
+            probe.result.completeExceptionally(new TimeoutException(probe == lost
+                    ? "Mill did not answer probe " + probe.sequence
+                    : "Gave up on probe " + probe.sequence + " after probe " + lost.sequence + " was lost"));
+        }
+        quiet = true;
+        quietUntil = now + lost.timeoutNanos;
+    }
+
+    /**
+     * Fails every probe in flight without counting them as lost
+     */
+    void failAll(Throwable cause) {
+        Probe probe;
+        while ((probe = inFlight.poll()) != null) {
+            probe.cancelTimeout();
+            probe.result.completeExceptionally(cause);
+        }
+    }
+}
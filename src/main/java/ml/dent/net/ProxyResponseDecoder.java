@@ -0,0 +1,101 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ByteProcessor;
+
+/**
+ * Incrementally consumes the HTTP response a proxy sends to a CONNECT request, one read at a time. Only the status
+ * code is kept, the headers are skipped without being copied. The response may be split across any number of reads,
+ * and anything after the blank line that ends it is left in the buffer.
+ */
+class ProxyResponseDecoder implements ByteProcessor {
+
+    private static final int MAX_RESPONSE_LENGTH = 8192;
+
+    private enum State {
+        VERSION, STATUS_CODE, HEADERS, DONE
+    }
+
+    private State state = State.VERSION;
+
+    private int statusCode;
+    private int statusDigits;
+    private int lineLength;
+    private int length;
+
+    private boolean malformed;
+
+    /**
+     * Consumes bytes from the buffer up to the end of the response.
+     *
+     * @return Whether the response is complete, or found to be malformed. If false, all readable bytes were
+     * consumed and more are needed.
+     */
+    boolean decode(ByteBuf buf) {
+        if (state == State.DONE) {
+            return true;
+        }
+        int end = buf.forEachByte(this);
+        if (end < 0) {
+            buf.skipBytes(buf.readableBytes());
+            return false;
+        }
+        buf.readerIndex(end + 1);
+        return true;
+    }
+
+    @Override
+    public boolean process(byte b) {
+        if (++length > MAX_RESPONSE_LENGTH) {
+            malformed = true;
+            state = State.DONE;
+            return false;
+        }
+        switch (state) {
+            case VERSION:
+                if (b == ' ') {
+                    state = State.STATUS_CODE;
+                }
+                break;
+            case STATUS_CODE:
+                if (b >= '0' && b <= '9' && statusDigits < 3) {
+                    statusCode = statusCode * 10 + (b - '0');
+                    statusDigits++;
+                } else {
+                    state = State.HEADERS;
+                }
+                break;
+            default:
+                break;
+        }
+        // The response ends with an empty line, a lone \n is accepted as well as \r\n
+        if (b == '\n') {
+            if (lineLength == 0) {
+                state = State.DONE;
+                return false;
+            }
+            lineLength = 0;
+        } else if (b != '\r') {
+            lineLength++;
+        }
+        return true;
+    }
+
+    /**
+     * @return Whether the response could not be understood
+     */
+    boolean isMalformed() {
+        return malformed || statusDigits != 3;
+    }
+
+    /**
+     * @return Whether the proxy accepted the tunnel
+     */
+    boolean isEstablished() {
+        return state == State.DONE && !isMalformed() && statusCode / 100 == 2;
+    }
+
+    int statusCode() {
+        return statusCode;
+    }
+}
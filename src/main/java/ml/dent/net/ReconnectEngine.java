@@ -0,0 +1,263 @@
+package ml.dent.net;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.ScheduledFuture;
+import javafx.beans.property.*;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import ml.dent.util.UIUtil;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconnects a network client after it lost its connection. Attempts are scheduled on the client's shared event loop
+ * group with a capped exponential backoff, randomly shortened by up to the jitter fraction so that clients losing
+ * their connection together do not retry in lockstep. The group is held for as long as the engine is running, so it
+ * is not torn down and rebuilt between attempts.
+ * <p>
+ * The observable properties and the attempt history are only updated on the JavaFX thread.
+ */
+public class ReconnectEngine {
+
+    private static final int MAX_HISTORY = 50;
+
+    private final AbstractNetworkClient client;
+    private final Executor              uiExecutor;
+
+    private long   initialDelay = TimeUnit.MILLISECONDS.toNanos(500);
+    private long   maxDelay     = TimeUnit.SECONDS.toNanos(30);
+    private double jitter       = 0.5;
+
+    private EventLoopGroup     group;
+    private ScheduledFuture<?> pending;
+    private boolean            running;
+    private int                attempts;
+    private long               outageStart;
+    private long               nextDelay;
+
+    private final BooleanProperty         reconnecting     = new SimpleBooleanProperty(false);
+    private final LongProperty            nextAttemptDelay = new SimpleLongProperty(-1);
+    private final DoubleProperty          lastRecoveryTime = new SimpleDoubleProperty(-1);
+    private final ObservableList<Attempt> history          = FXCollections.observableArrayList();
+
+    public ReconnectEngine(AbstractNetworkClient client) {
+        this(client, UIUtil::runOnJFXThread);
+    }
+
+    /**
+     * @param uiExecutor runs the updates of the observable properties and the history, which outside of tests is the
+     *                   JavaFX thread
+     */
+    ReconnectEngine(AbstractNetworkClient client, Executor uiExecutor) {
+        this.client = client;
+        this.uiExecutor = uiExecutor;
+    }
+
+    /**
+     * Starts trying to reconnect right away, does nothing if already running
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        attempts = 0;
+        outageStart = System.nanoTime();
+        group = client.getEventLoopProvider().acquire();
+        uiExecutor.execute(() -> reconnecting.set(true));
+        schedule(0);
+    }
+
+    /**
+     * Stops trying to reconnect. An attempt that is already connecting is left to finish.
+     */
+    public synchronized void cancel() {
+        if (running) {
+            stop();
+        }
+    }
+
+    private void stop() {
+        running = false;
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+        group = null;
+        client.getEventLoopProvider().release();
+        uiExecutor.execute(() -> {
+            nextAttemptDelay.set(-1);
+            reconnecting.set(false);
+        });
+    }
+
+    private void schedule(long delay) {
+        nextDelay = delay;
+        long delayMillis = TimeUnit.NANOSECONDS.toMillis(delay);
+        uiExecutor.execute(() -> nextAttemptDelay.set(delayMillis));
+        pending = group.next().schedule(this::attempt, delay, TimeUnit.NANOSECONDS);
+    }
+
+    private void attempt() {
+        int number;
+        long delay;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            if (client.isConnectionActive()) {
+                // Someone else already reconnected the client
+                recovered();
+                return;
+            }
+            number = ++attempts;
+            delay = nextDelay;
+        }
+        long started = System.nanoTime();
+        try {
+            ChannelFuture cf = client.connect();
+            cf.addListener(future -> finished(number, delay, started, future.isSuccess(), future.cause()));
+        } catch (Exception e) {
+            finished(number, delay, started, false, e);
+        }
+    }
+
+    private synchronized void finished(int number, long delay, long started, boolean success, Throwable cause) {
+        Attempt attempt = new Attempt(number, delay / 1e6, (System.nanoTime() - started) / 1e6, success,
+                cause == null ? null : cause.getMessage());
+        uiExecutor.execute(() -> {
+            history.add(attempt);
+            if (history.size() > MAX_HISTORY) {
+                history.remove(0);
+            }
+        });
+        if (!running) {
+            return;
+        }
+        if (success) {
+            recovered();
+        } else {
+            schedule(backoff(number));
+        }
+    }
+
+    private void recovered() {
+        double recovery = (System.nanoTime() - outageStart) / 1e6;
+        uiExecutor.execute(() -> lastRecoveryTime.set(recovery));
+        stop();
+    }
+
+    /**
+     * @return The delay before the attempt after the given one
+     */
+    private long backoff(int attempt) {
+        long delay = initialDelay;
+        for (int i = 1; i < attempt && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+        return delay - (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * @param initialDelay the delay after the first failed attempt, doubled after every further failure
+     * @param maxDelay     the longest delay between two attempts
+     * @param jitter       the largest fraction by which a delay is randomly shortened, between 0 and 1
+     */
+    public synchronized void setBackoff(long initialDelay, long maxDelay, TimeUnit unit, double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Jitter has to be between 0 and 1");
+        }
+        this.initialDelay = unit.toNanos(initialDelay);
+        this.maxDelay = unit.toNanos(maxDelay);
+        this.jitter = jitter;
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return Whether the engine is trying to reconnect
+     */
+    public ReadOnlyBooleanProperty reconnectingProperty() {
+        return reconnecting;
+    }
+
+    /**
+     * @return The delay in milliseconds before the next attempt, -1 if none is scheduled
+     */
+    public ReadOnlyLongProperty nextAttemptDelayProperty() {
+        return nextAttemptDelay;
+    }
+
+    /**
+     * @return Milliseconds from the start of the last successful reconnect until the client was connected again
+     */
+    public ReadOnlyDoubleProperty lastRecoveryTimeProperty() {
+        return lastRecoveryTime;
+    }
+
+    /**
+     * @return The most recent attempts, oldest first
+     */
+    public ObservableList<Attempt> getHistory() {
+        return FXCollections.unmodifiableObservableList(history);
+    }
+
+    public static class Attempt {
+        private final int     number;
+        private final double  delay;
+        private final double  latency;
+        private final boolean success;
+        private final String  cause;
+
+        private Attempt(int number, double delay, double latency, boolean success, String cause) {
+            this.number = number;
+            this.delay = delay;
+            this.latency = latency;
+            this.success = success;
+            this.cause = cause;
+        }
+
+        /**
+         * @return Which attempt of its reconnect this was, starting at 1
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * @return Milliseconds waited before this attempt
+         */
+        public double getDelay() {
+            return delay;
+        }
+
+        /**
+         * @return Milliseconds the attempt took to succeed or fail
+         */
+        public double getLatency() {
+            return latency;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * @return Why the attempt failed, null if it succeeded or there is no message
+         */
+        public String getCause() {
+            return cause;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Attempt %d after %.0fms: %s in %.1fms", number, delay, success ? "connected" : "failed (" + cause + ")", latency);
+        }
+    }
+}
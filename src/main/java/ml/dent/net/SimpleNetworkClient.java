@@ -1,19 +1,21 @@
 package ml.dent.net;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.PooledByteBufAllocator;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.*;
 import io.netty.handler.proxy.ProxyConnectException;
-import io.netty.util.CharsetUtil;
 import io.netty.util.ReferenceCountUtil;
-import javafx.beans.property.BooleanProperty;
-import javafx.beans.property.ReadOnlyBooleanProperty;
-import javafx.beans.property.SimpleBooleanProperty;
+import io.netty.util.concurrent.Future;
+import javafx.beans.property.*;
 
 import java.net.ProtocolException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A basic working implementation of the network client that can write data and
@@ -25,6 +27,8 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
 
     private static final int BUFFER_SIZE = 256;
 
+    private static final long STANDBY_RETRY_DELAY = 5;
+
     private boolean proxyEnabled;
     private boolean bounceServerProtocol;
     private boolean buffering;
@@ -54,7 +58,14 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
      *                on this channel
      */
     public SimpleNetworkClient(String host, int port, int channel, boolean buffer) {
-        super(host, port);
+        this(host, port, channel, buffer, EventLoopProvider.getDefault());
+    }
+
+    /**
+     * @param eventLoopProvider provides the event loop group this client's connections run on
+     */
+    public SimpleNetworkClient(String host, int port, int channel, boolean buffer, EventLoopProvider eventLoopProvider) {
+        super(host, port, eventLoopProvider);
         this.channel = channel;
         this.buffering = buffer;
         internalPort = getPort();
@@ -63,7 +74,31 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
         bounceServerProtocol = true;
     }
 
-    private DefaultChannelPromise channelPromise;
+    private final Object connectionLock = new Object();
+
+    /**
+     * Set while a connection is opened next to the current one, so that {@link #connect(ChannelHandler...)} does not
+     * replace the current one
+     */
+    private boolean   openingInBackground;
+    private Handshake openedInBackground;
+
+    private volatile Handshake currentConnection;
+    private volatile Handshake standby;
+    private volatile boolean   hotStandby;
+
+    private final DoubleProperty lastSwitchoverTime = new SimpleDoubleProperty(-1);
+    private final AtomicLong     failovers          = new AtomicLong();
+
+    private boolean pipelinedHandshake;
+    private boolean pipelinedFallback;
+
+    /**
+     * The width of the channel id the bounce server asked for on the last connection, -1 if not known yet
+     */
+    private volatile int knownChannelBytes = -1;
+
+    private volatile HandshakeTimings lastHandshakeTimings;
 
     @Override
     public ChannelFuture connect() {
@@ -72,58 +107,299 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
 
     @Override
     public ChannelFuture connect(ChannelHandler... channelHandlers) {
-        connectionAttempted.set(false);
-        ArrayList<ChannelHandler> handlerList = new ArrayList<>();
-        handlerList.add(new ClientOutboundHandler());
-        if (proxyEnabled) {
-            handlerList.add(new ProxyHandler());
-        }
-        if (bounceServerProtocol) {
-            handlerList.add(new BounceServerHandler());
-        }
-        handlerList.add(new ActiveHandler());
-        ChannelHandler[] newHandlers = new ChannelHandler[channelHandlers.length + handlerList.size()];
-        System.arraycopy(handlerList.toArray(newHandlers), 0, newHandlers, 0, handlerList.size());
-        System.arraycopy(channelHandlers, 0, newHandlers, handlerList.size(), channelHandlers.length);
-
-        ChannelFuture cf = super.connect(newHandlers);
-        generateNewChannelFuture(cf);
-        return channelPromise;
-    }
-
-    private void generateNewChannelFuture(ChannelFuture cf) {
-        channelPromise = new DefaultChannelPromise(cf.channel()) {
-            {
-                cf.addListener(listener -> {
-                    if (!cf.isSuccess()) {
-                        setFailure(cf.cause());
+        synchronized (connectionLock) {
+            boolean background = openingInBackground;
+            if (!background) {
+                connectionAttempted.set(false);
+                dropStandby();
+            }
+            // The channel id can only be sent ahead of the version string once we know how wide the server wants it
+            boolean pipelined = pipelinedHandshake && !pipelinedFallback && bounceServerProtocol && (channel == -1 || knownChannelBytes > 0);
+            Handshake handshake = new Handshake(pipelined, knownChannelBytes, background);
+            ArrayList<ChannelHandler> handlerList = new ArrayList<>();
+            handlerList.add(new ClientOutboundHandler());
+            if (proxyEnabled) {
+                handlerList.add(new ProxyHandler(handshake));
+            }
+            if (bounceServerProtocol) {
+                handlerList.add(new BounceServerHandler(handshake));
+            }
+            handlerList.add(new ActiveHandler(handshake));
+            ChannelHandler[] newHandlers = new ChannelHandler[channelHandlers.length + handlerList.size()];
+            System.arraycopy(handlerList.toArray(newHandlers), 0, newHandlers, 0, handlerList.size());
+            System.arraycopy(channelHandlers, 0, newHandlers, handlerList.size(), channelHandlers.length);
+
+            // The promise has to exist before the channel can become active, the handlers complete it
+            if (background) {
+                openChannel(cf -> handshake.promise = new ConnectingPromise(cf), newHandlers);
+                openedInBackground = handshake;
+            } else {
+                super.connect(cf -> handshake.promise = new ConnectionPromise(cf), newHandlers);
+                currentConnection = handshake;
+                handshake.promise.addListener(future -> {
+                    if (future.isSuccess()) {
+                        openStandby();
+                    }
+                });
+            }
+            if (pipelined) {
+                handshake.promise.addListener(future -> {
+                    if (!future.isSuccess()) {
+                        // Something along the way did not cope with the pipelined messages, use the strict sequence
+                        pipelinedFallback = true;
                     }
                 });
             }
+            return handshake.promise;
+        }
+    }
+
+    /**
+     * The promise of a handshake on a connection that is still being opened. It fails if the connection does, and its
+     * channel is whichever channel the connection ends up on.
+     */
+    private static class ConnectingPromise extends DefaultChannelPromise {
+        final ChannelFuture connecting;
+
+        private ConnectingPromise(ChannelFuture connecting) {
+            super(connecting.channel());
+            this.connecting = connecting;
+            connecting.addListener(future -> {
+                if (!future.isSuccess()) {
+                    tryFailure(future.cause());
+                }
+            });
+        }
+
+        @Override
+        public Channel channel() {
+            return connecting.channel();
+        }
+
+        /**
+         * Closes the connection, or gives up on it if it is still being opened
+         */
+        void closeConnection() {
+            connecting.cancel(false);
+            channel().close();
+        }
+    }
+
+    /**
+     * The promise of a foreground connection, which only counts as done once the connection attempt is over
+     */
+    private class ConnectionPromise extends ConnectingPromise {
+
+        private ConnectionPromise(ChannelFuture connecting) {
+            super(connecting);
+        }
 
-            @Override
-            public boolean isDone() {
-                return connectionAttempted.get() && cf.isDone();
+        @Override
+        public boolean isDone() {
+            return connectionAttempted.get() && connecting.isDone();
+        }
+
+        @Override
+        public boolean isSuccess() {
+            return isConnectionActive() && connecting.isSuccess();
+        }
+
+        @Override
+        public ChannelPromise setSuccess() {
+            connectionAttempted.set(true);
+            connectionStatusProperty.set(true);
+            return super.setSuccess();
+        }
+
+        @Override
+        public ChannelPromise setFailure(Throwable cause) {
+            connectionAttempted.set(true);
+            return super.setFailure(cause);
+        }
+
+        @Override
+        public boolean tryFailure(Throwable cause) {
+            connectionAttempted.set(true);
+            return super.tryFailure(cause);
+        }
+    }
+
+    /**
+     * Opens a connection with the current settings that goes through the whole handshake, but is kept from the
+     * handlers of subclasses until it is promoted to be this client's channel
+     */
+    private Handshake openInBackground() {
+        synchronized (connectionLock) {
+            openingInBackground = true;
+            try {
+                // Goes through the subclass, so the connection gets its own set of the subclass' handlers
+                connect();
+                return openedInBackground;
+            } finally {
+                openingInBackground = false;
+                openedInBackground = null;
             }
+        }
+    }
 
-            @Override
-            public boolean isSuccess() {
-                return isConnectionActive() && cf.isSuccess();
+    /**
+     * Builds a new connection with the current settings, such as a changed host, and moves all traffic over to it
+     * once it is ready, only then closing the old one. If the new connection fails, the old one is kept. If there is
+     * no connection, this is the same as {@link #connect()}.
+     *
+     * @return A future that completes once traffic has moved to the new connection
+     */
+    public ChannelFuture switchover() {
+        if (!isConnectionActive()) {
+            return connect();
+        }
+        long started = System.nanoTime();
+        // A standby built with the old settings is no use anymore
+        dropStandby();
+        Handshake next = openInBackground();
+        ChannelPromise switched = new ConnectingPromise(next.promise);
+        next.promise.addListener(future -> {
+            if (!future.isSuccess()) {
+                switched.tryFailure(future.cause());
+            } else if (!promote(next, started, "Switched over to a new connection")) {
+                next.promise.channel().close();
+                switched.tryFailure(new IllegalStateException("Connection was closed during the switchover"));
+            } else {
+                switched.trySuccess();
             }
+        });
+        return switched;
+    }
 
-            @Override
-            public ChannelPromise setSuccess() {
-                connectionAttempted.set(true);
-                connectionStatusProperty.set(true);
-                return super.setSuccess();
+    /**
+     * Makes a background connection this client's channel and closes the previous one. The handlers of subclasses
+     * only ever see the events of the current connection.
+     *
+     * @param started when the switch was asked for, or when the previous connection was lost
+     * @param reason  why the previous connection is closed, handed to its handlers in a {@link ConnectionReplacedEvent}
+     * @return Whether there was still a connection to take over from
+     */
+    private boolean promote(Handshake next, long started, String reason) {
+        Handshake previous;
+        synchronized (connectionLock) {
+            previous = currentConnection;
+            if (previous == null || !next.promise.channel().isActive()) {
+                return false;
+            }
+            if (standby == next) {
+                standby = null;
             }
+            previous.live = false;
+            currentConnection = next;
+            replaceChannel(next.promise.channel());
+        }
+        connectionStatusProperty.set(true);
+        lastSwitchoverTime.set((System.nanoTime() - started) / 1e6);
+        ChannelHandlerContext ctx = next.context;
+        ctx.executor().execute(() -> {
+            next.live = true;
+            ctx.fireChannelActive();
+        });
+        ChannelHandlerContext previousCtx = previous.context;
+        if (previousCtx != null) {
+            // Its handlers are cut off before it closes, so they are told why instead
+            previousCtx.executor().execute(() -> {
+                previousCtx.fireUserEventTriggered(new ConnectionReplacedEvent(reason));
+                previousCtx.channel().close();
+            });
+        } else {
+            previous.promise.channel().close();
+        }
+        openStandby();
+        return true;
+    }
 
-            @Override
-            public ChannelPromise setFailure(Throwable cause) {
-                connectionAttempted.set(true);
-                return super.setFailure(cause);
+    /**
+     * Keeps a second connection through the whole handshake and ready to take over the moment the current one is
+     * lost, instead of waiting for a new connection to be built. The bounce server has to accept a second connection
+     * on the same channel for this to work.
+     */
+    public void setHotStandby(boolean hotStandby) {
+        this.hotStandby = hotStandby;
+        if (hotStandby) {
+            openStandby();
+        } else {
+            dropStandby();
+        }
+    }
+
+    public boolean getHotStandby() {
+        return hotStandby;
+    }
+
+    /**
+     * @return Whether a standby connection is ready to take over
+     */
+    public boolean isStandbyReady() {
+        Handshake s = standby;
+        return s != null && s.promise.isSuccess() && s.promise.channel().isActive();
+    }
+
+    private void openStandby() {
+        synchronized (connectionLock) {
+            if (!hotStandby || standby != null || !isConnectionActive()) {
+                return;
             }
-        };
+            Handshake next = openInBackground();
+            standby = next;
+            next.promise.addListener(future -> {
+                if (!future.isSuccess()) {
+                    standbyLost(next);
+                }
+            });
+        }
+    }
+
+    /**
+     * Forgets a standby that failed or was closed, and builds a new one after a moment
+     */
+    private void standbyLost(Handshake lost) {
+        synchronized (connectionLock) {
+            if (standby != lost) {
+                return;
+            }
+            standby = null;
+        }
+        Channel current = getChannel();
+        if (hotStandby && current != null) {
+            current.eventLoop().schedule(this::openStandby, STANDBY_RETRY_DELAY, TimeUnit.SECONDS);
+        }
+    }
+
+    private void dropStandby() {
+        Handshake dropped;
+        synchronized (connectionLock) {
+            dropped = standby;
+            standby = null;
+        }
+        if (dropped != null) {
+            dropped.promise.closeConnection();
+        }
+    }
+
+    @Override
+    public Future<?> disconnect() {
+        dropStandby();
+        return super.disconnect();
+    }
+
+    /**
+     * @return Milliseconds from the last switchover or failover being needed until traffic moved to the new connection
+     */
+    public ReadOnlyDoubleProperty lastSwitchoverTimeProperty() {
+        return lastSwitchoverTime;
+    }
+
+    /**
+     * @return The number of times the standby took over a lost connection
+     */
+    public long getFailoverCount() {
+        return failovers.get();
     }
 
     @Override
@@ -137,29 +413,46 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
     }
 
     public ChannelFuture write(String s) {
-        return write(Unpooled.copiedBuffer(s, CharsetUtil.UTF_8));
+        return write(ByteBufUtil.writeUtf8(getAllocator(), s));
     }
 
-    private PooledByteBufAllocator alloc = new PooledByteBufAllocator();
-    private ByteBuf                curBuffer;
+    private final Object bufferLock    = new Object();
+    private ByteBuf      curBuffer;
+    private long         batchStart;
+    private int          batchId;
+    private long         maxBatchDelay = TimeUnit.MILLISECONDS.toNanos(2);
+    private int          maxBatchSize  = BUFFER_SIZE;
+
+    private final AtomicLong batches      = new AtomicLong();
+    private final AtomicLong batchedBytes = new AtomicLong();
+    private final AtomicLong batchDelay   = new AtomicLong();
 
     /**
-     * If buffering is enabled, this method will flush for you if the buffer is filled.
+     * If buffering is enabled, bytes are collected into batches that are sent once they reach the maximum batch size
+     * or once the first byte of the batch has waited for the maximum batch delay, whichever comes first. The delay is
+     * timed on the channel's event loop.
      *
      * @param b The byte to write
      */
     public void write(byte b) {
         if (buffering) {
-            if (curBuffer == null) {
-                curBuffer = alloc.buffer(BUFFER_SIZE, BUFFER_SIZE);
+            if (!isConnectionActive()) {
+                throw new IllegalStateException("Cannot write to non-active Channel!");
             }
-            if (curBuffer.writableBytes() <= 0) {
-                writeAndFlush(curBuffer);
-                curBuffer = alloc.buffer(BUFFER_SIZE, BUFFER_SIZE);
+            synchronized (bufferLock) {
+                if (curBuffer == null) {
+                    curBuffer = getAllocator().buffer(maxBatchSize, maxBatchSize);
+                    batchStart = System.nanoTime();
+                    int batch = ++batchId;
+                    getChannel().eventLoop().schedule(() -> flushBatch(batch), maxBatchDelay, TimeUnit.NANOSECONDS);
+                }
+                curBuffer.writeByte(b);
+                if (!curBuffer.isWritable()) {
+                    getChannel().writeAndFlush(takeBatch());
+                }
             }
-            curBuffer.writeByte(b);
         } else {
-            ByteBuf buf = alloc.buffer();
+            ByteBuf buf = getAllocator().buffer(1);
             buf.writeByte(b);
             write(buf);
         }
@@ -169,14 +462,213 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
         if (!isConnectionActive()) {
             throw new IllegalStateException("Cannot write to non-active Channel!");
         }
-
+        // Bytes written before this message have to go out before it
+        writeBatch();
         return getChannel().write(o);
     }
 
+    /**
+     * Flushes the channel, including any bytes still waiting in the current batch
+     */
     public void flush() {
+        writeBatch();
         getChannel().flush();
     }
 
+    private void writeBatch() {
+        if (buffering) {
+            synchronized (bufferLock) {
+                ByteBuf batch = takeBatch();
+                if (batch != null) {
+                    getChannel().write(batch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs on the event loop once a batch has waited for the maximum batch delay
+     */
+    private void flushBatch(int batch) {
+        synchronized (bufferLock) {
+            if (batch != batchId || curBuffer == null) {
+                // Already sent because it filled up or was flushed
+                return;
+            }
+            ByteBuf buf = takeBatch();
+            if (isConnectionActive()) {
+                getChannel().writeAndFlush(buf);
+            } else {
+                buf.release();
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding the buffer lock, and the batch has to be handed to the channel before the lock is
+     * released. Writes from other threads are queued on the event loop in the order they are made, so that keeps the
+     * batches in order with each other and with the bytes written after them.
+     *
+     * @return The current batch, or null if there is none
+     */
+    private ByteBuf takeBatch() {
+        ByteBuf batch = curBuffer;
+        if (batch != null) {
+            curBuffer = null;
+            batches.incrementAndGet();
+            batchedBytes.addAndGet(batch.readableBytes());
+            batchDelay.addAndGet(System.nanoTime() - batchStart);
+        }
+        return batch;
+    }
+
+    /**
+     * Sets the limits of a batch in buffering mode
+     *
+     * @param maxDelay     the longest the first byte of a batch waits before the batch is sent
+     * @param maxBatchSize the number of bytes after which a batch is sent right away
+     */
+    public void setBatchLimits(long maxDelay, TimeUnit unit, int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batches need to hold at least one byte");
+        }
+        synchronized (bufferLock) {
+            this.maxBatchDelay = unit.toNanos(maxDelay);
+            this.maxBatchSize = maxBatchSize;
+        }
+    }
+
+    public boolean isBuffering() {
+        return buffering;
+    }
+
+    /**
+     * @return The average number of bytes sent per batch in buffering mode
+     */
+    public double getAverageBatchSize() {
+        long count = batches.get();
+        return count == 0 ? 0 : (double) batchedBytes.get() / count;
+    }
+
+    /**
+     * @return The average time in milliseconds the first byte of a batch waited before the batch was sent
+     */
+    public double getAverageBatchDelay() {
+        long count = batches.get();
+        return count == 0 ? 0 : batchDelay.get() / 1e6 / count;
+    }
+
+    /**
+     * What to do with a write when the outbound queue is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the oldest queued write to make room
+         */
+        DROP_OLDEST,
+        /**
+         * Keep only the newest write of each command, commands being identified by their first byte. When the queue
+         * is full of different commands, the oldest is dropped.
+         */
+        COALESCE_LATEST,
+        /**
+         * Fail the new write
+         */
+        REJECT
+    }
+
+    private volatile OverflowPolicy overflowPolicy  = OverflowPolicy.DROP_OLDEST;
+    private volatile int            maxQueuedWrites = 64;
+
+    private volatile int     queuedWrites;
+    private final AtomicLong droppedWrites  = new AtomicLong();
+    private final AtomicLong unwritableTime = new AtomicLong();
+
+    /**
+     * Sets how writes are queued while the channel is not writable, see
+     * {@link #setWriteBufferWaterMark(int, int)} for when that is the case
+     *
+     * @param maxQueuedWrites the most writes that are held back at once
+     */
+    public void setOutboundQueue(int maxQueuedWrites, OverflowPolicy policy) {
+        if (maxQueuedWrites < 1) {
+            throw new IllegalArgumentException("Outbound queue needs room for at least one write");
+        }
+        this.maxQueuedWrites = maxQueuedWrites;
+        this.overflowPolicy = policy;
+    }
+
+    public int getMaxQueuedWrites() {
+        return maxQueuedWrites;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return The number of writes currently held back because the channel is not writable
+     */
+    public int getQueuedWriteCount() {
+        return queuedWrites;
+    }
+
+    /**
+     * @return The number of writes dropped or rejected because the outbound queue was full, or replaced by a newer
+     * write of the same command
+     */
+    public long getDroppedWriteCount() {
+        return droppedWrites.get();
+    }
+
+    /**
+     * @return The total time in milliseconds the channel has spent not writable
+     */
+    public double getUnwritableTime() {
+        return unwritableTime.get() / 1e6;
+    }
+
+    private final AtomicLong supersededWrites = new AtomicLong();
+
+    /**
+     * Writes and flushes a frame ahead of everything this client is still holding back, dropping the held writes that
+     * {@link #isSupersededByUrgent(Object)} says the frame makes pointless. Bytes not yet flushed from the write
+     * buffer are dropped the same way. Frames already handed to the channel can not be overtaken, but those are kept
+     * few by holding writes back while the channel is not writable.
+     *
+     * @return A future that completes once the frame has been written to the socket
+     */
+    public ChannelFuture writeUrgent(ByteBuf frame) {
+        if (!isConnectionActive()) {
+            frame.release();
+            throw new IllegalStateException("Cannot write to non-active Channel!");
+        }
+        synchronized (bufferLock) {
+            if (curBuffer != null && isSupersededByUrgent(curBuffer)) {
+                curBuffer.release();
+                curBuffer = null;
+                supersededWrites.incrementAndGet();
+            }
+        }
+        return getChannel().writeAndFlush(new UrgentFrame(frame));
+    }
+
+    /**
+     * Decides which pending writes an urgent frame drops, by default all of them
+     *
+     * @param msg a message that has been written but not yet handed to the channel
+     */
+    protected boolean isSupersededByUrgent(Object msg) {
+        return true;
+    }
+
+    /**
+     * @return The number of writes that were dropped because an urgent frame superseded them
+     */
+    public long getSupersededWriteCount() {
+        return supersededWrites.get();
+    }
+
     public ChannelFuture writeAndFlush(String s) {
         ChannelFuture cf = write(s);
         flush();
@@ -210,6 +702,29 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
         return proxyEnabled;
     }
 
+    /**
+     * When enabled, the proxy CONNECT request, the authentication message and the channel id are sent back to back
+     * instead of waiting for the proxy response and the bounce server version string in between. The replies are
+     * still validated as they arrive. If a pipelined connection attempt fails, the strict sequence is used from then
+     * on until this is set again.
+     */
+    public void setPipelinedHandshake(boolean pipelinedHandshake) {
+        this.pipelinedHandshake = pipelinedHandshake;
+        pipelinedFallback = false;
+    }
+
+    public boolean getPipelinedHandshake() {
+        return pipelinedHandshake;
+    }
+
+    /**
+     * @return The phase timings of the last connection that completed the bounce server handshake, null if there
+     * has not been one
+     */
+    public HandshakeTimings getLastHandshakeTimings() {
+        return lastHandshakeTimings;
+    }
+
     public void setBounceServerProtocol(boolean bounceServerProtocol) {
         this.bounceServerProtocol = bounceServerProtocol;
     }
@@ -240,53 +755,100 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
         name = newName;
     }
 
+    /**
+     * State shared by the handshake handlers of a single connection
+     */
+    private static class Handshake {
+        private final HandshakeTimings timings;
+        private final boolean          pipelined;
+        private final int              channelBytes;
+        private final boolean          background;
+
+        private volatile ConnectingPromise promise;
+
+        private boolean messagesWritten;
+
+        /**
+         * The context of the {@link ActiveHandler}, set once the handshake is done
+         */
+        private volatile ChannelHandlerContext context;
+
+        /**
+         * Whether the handlers of subclasses get this connection's events
+         */
+        private volatile boolean live;
+
+        private Handshake(boolean pipelined, int channelBytes, boolean background) {
+            this.timings = new HandshakeTimings(pipelined);
+            this.pipelined = pipelined;
+            this.channelBytes = channelBytes;
+            this.background = background;
+        }
+    }
+
+    /**
+     * Writes the authentication message and the channel id without flushing. We use ctx.write instead of our own
+     * write method because we don't want the message traveling through the entire pipeline
+     */
+    private void writeBounceServerHandshake(ChannelHandlerContext ctx, Handshake handshake, int channelBytes) {
+        handshake.messagesWritten = true;
+        if (authenticationMessage != null) {
+            ctx.write(ByteBufUtil.writeUtf8(ctx.alloc(), authenticationMessage));
+        }
+        if (channel != -1) {
+            ByteBuf channelId = ctx.alloc().buffer(Math.max(channelBytes, 8));
+            BounceServerGreetingDecoder.writeChannelId(channelId, channel, channelBytes);
+            ctx.write(channelId);
+        }
+    }
+
     private class ProxyHandler extends ChannelInboundHandlerAdapter {
+
+        private final Handshake            handshake;
+        private final ProxyResponseDecoder responseDecoder = new ProxyResponseDecoder();
+
+        private ProxyHandler(Handshake handshake) {
+            this.handshake = handshake;
+        }
+
         @Override
         public void channelActive(ChannelHandlerContext ctx) {
+            handshake.timings.markActive();
             proxyConnectionEstablished.set(false);
             String httpReq = "CONNECT localhost:" + getInternalPort() + " HTTP/1.1\r\n" + "Host: localhost:" + getInternalPort() + "\r\n"
                     + "Proxy-Connection: Keep-Alive\r\n" + "\r\n";
 
-            ctx.writeAndFlush(Unpooled.copiedBuffer(httpReq, CharsetUtil.UTF_8));
+            ctx.write(ByteBufUtil.writeUtf8(ctx.alloc(), httpReq));
+            if (handshake.pipelined) {
+                // Queue the bounce server messages right behind the CONNECT, the proxy forwards them once the tunnel
+                // is up
+                writeBounceServerHandshake(ctx, handshake, handshake.channelBytes);
+            }
+            ctx.flush();
         }
 
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
             if (!proxyConnectionEstablished.get()) {
+                ByteBuf buf = (ByteBuf) msg;
                 try {
-                    ByteBuf buf = (ByteBuf) msg;
-                    StringBuilder httpResponse = new StringBuilder();
-                    int endCount = 0;
-                    byte lastByte = -1;
-                    // HTTP Responses always end in a pair of \r\n's, so we keep reading until we hit that pattern
-                    while (endCount < 2 && buf.readableBytes() > 0) {
-                        byte b = buf.readByte();
-                        if (b == '\n' && lastByte == '\r') {
-                            endCount++;
-                        }
-                        if (b != '\n' && b != '\r') {
-                            endCount = 0;
-                        }
-                        httpResponse.append((char) b);
-                        lastByte = b;
-                    }
-                    if (endCount < 2) {
-                        // Did not receive complete HTTP response
-                        channelPromise.setFailure(new ProxyConnectException("Did not receive valid HTTP response from proxy"));
-                        ctx.close();
+                    // HTTP responses end with an empty line, which may come in a later read than the status line
+                    if (!responseDecoder.decode(buf)) {
                         return;
                     }
-                    if (checkEstablished(httpResponse.toString())) {
+                    if (responseDecoder.isEstablished()) {
+                        handshake.timings.markProxyEstablished();
                         proxyConnectionEstablished.set(true);
                         super.channelActive(ctx);
-                        if (buf.readableBytes() > 0) {
+                        if (buf.isReadable()) {
                             // Forward the rest of the message down the pipeline
-                            ByteBuf nextBuf = Unpooled.buffer(buf.readableBytes());
-                            buf.readBytes(nextBuf);
-                            super.channelRead(ctx, nextBuf);
+                            super.channelRead(ctx, buf.retainedSlice());
                         }
+                    } else if (responseDecoder.isMalformed()) {
+                        handshake.promise.setFailure(new ProxyConnectException("Did not receive valid HTTP response from proxy"));
+                        ctx.close();
                     } else {
-                        channelPromise.setFailure(new ProxyConnectException(httpResponse.toString()));
+                        handshake.promise.setFailure(new ProxyConnectException("Proxy responded with status " + responseDecoder.statusCode()));
                         ctx.close();
                     }
                 } finally {
@@ -297,14 +859,10 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
             }
         }
 
-        private boolean checkEstablished(String confirm) {
-            return confirm.contains("200"); // 200 OK HTTP code
-        }
-
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            if (!channelPromise.isDone()) {
-                channelPromise.setFailure(cause);
+            if (!handshake.promise.isDone()) {
+                handshake.promise.setFailure(cause);
                 ctx.close();
             }
         }
@@ -312,61 +870,95 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
 
     private class BounceServerHandler extends ChannelInboundHandlerAdapter {
 
-        private AtomicBoolean verStringRecv = new AtomicBoolean();
-        private AtomicBoolean statusRecv    = new AtomicBoolean();
+        private final Handshake                   handshake;
+        private final BounceServerGreetingDecoder greetingDecoder = new BounceServerGreetingDecoder();
+
+        private AtomicBoolean statusRecv = new AtomicBoolean();
+
+        private BounceServerHandler(Handshake handshake) {
+            this.handshake = handshake;
+        }
 
         @Override
         public void channelActive(ChannelHandlerContext ctx) {
-            verStringRecv.set(false);
+            handshake.timings.markActive();
             statusRecv.set(false);
+            if (handshake.pipelined && !handshake.messagesWritten) {
+                writeBounceServerHandshake(ctx, handshake, handshake.channelBytes);
+                ctx.flush();
+            }
         }
 
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-            if (!verStringRecv.get()) {
-                try {
-                    String verString = ((ByteBuf) msg).toString(CharsetUtil.UTF_8).replaceAll("[\n\r]", "");
-                    if (!verString.matches("\\d+-.*")) {
-                        channelPromise.setFailure(new ProtocolException("Received incoherent bounce server version string: " + verString));
-                        ctx.close();
-                        return;
-                    }
-                    String channelBytesStr = verString.substring(0, verString.indexOf("-"));
-                    int channelBytes = Integer.parseInt(channelBytesStr);
-                    // We use ctx.writeAndFlush instead of our own write method because we don't
-                    // want the message traveling through the entire pipeline
-                    if (authenticationMessage != null) {
-                        ctx.writeAndFlush(Unpooled.copiedBuffer(authenticationMessage, CharsetUtil.UTF_8));
-                    }
-                    if (channel != -1) {
-                        ctx.writeAndFlush(Unpooled.copiedBuffer(String.format("%0" + channelBytes + "x", channel), CharsetUtil.UTF_8));
-                    }
-                    verStringRecv.set(true);
-                } finally {
-                    ReferenceCountUtil.release(msg);
-                }
-            } else if (!statusRecv.get()) {
-                try {
-                    String statusString = ((ByteBuf) msg).toString(CharsetUtil.UTF_8).trim();
-                    statusRecv.set(true);
-                    if (statusString.equals("READY")) {
-                        super.channelActive(ctx);
-                    } else {
-                        channelPromise.setFailure(new ProtocolException(statusString));
-                        ctx.close();
+            if (statusRecv.get()) {
+                super.channelRead(ctx, msg);
+                return;
+            }
+            ByteBuf buf = (ByteBuf) msg;
+            try {
+                while (!statusRecv.get()) {
+                    switch (greetingDecoder.decode(buf)) {
+                        case NONE:
+                            // Nothing is decided until the line ending arrives
+                            return;
+                        case MALFORMED:
+                            handshake.promise.setFailure(new ProtocolException("Received incoherent bounce server version string"));
+                            ctx.close();
+                            return;
+                        case VERSION:
+                            if (!onVersion(ctx, greetingDecoder.channelBytes())) {
+                                return;
+                            }
+                            break;
+                        case READY:
+                            onReady(ctx);
+                            if (buf.isReadable()) {
+                                // Data that arrived right behind the status belongs to the next handlers
+                                super.channelRead(ctx, buf.retainedSlice());
+                            }
+                            return;
+                        case REJECTED:
+                            statusRecv.set(true);
+                            handshake.promise.setFailure(new ProtocolException(greetingDecoder.statusText()));
+                            ctx.close();
+                            return;
                     }
-                } finally {
-                    ReferenceCountUtil.release(msg);
                 }
-            } else {
-                super.channelRead(ctx, msg);
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        private void onReady(ChannelHandlerContext ctx) {
+            statusRecv.set(true);
+            handshake.timings.markReady();
+            lastHandshakeTimings = handshake.timings;
+            ctx.fireChannelActive();
+        }
+
+        /**
+         * @return Whether the handshake can continue
+         */
+        private boolean onVersion(ChannelHandlerContext ctx, int channelBytes) {
+            handshake.timings.markVersionReceived();
+            knownChannelBytes = channelBytes;
+            if (!handshake.messagesWritten) {
+                writeBounceServerHandshake(ctx, handshake, channelBytes);
+                ctx.flush();
+            } else if (channel != -1 && channelBytes != handshake.channelBytes) {
+                // The pipelined channel id had the wrong width, the next attempt will use the new one
+                handshake.promise.setFailure(new ProtocolException("Bounce server channel id width changed to " + channelBytes));
+                ctx.close();
+                return false;
             }
+            return true;
         }
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            if (!channelPromise.isDone()) {
-                channelPromise.setFailure(cause);
+            if (!handshake.promise.isDone()) {
+                handshake.promise.setFailure(cause);
                 ctx.close();
             }
         }
@@ -375,27 +967,193 @@ public class SimpleNetworkClient extends AbstractNetworkClient {
     // This class simulates a handler that would be after the normal SimpleNetworkClient handler in the pipeline
     // to detect when this channel is ready to be used
     private class ActiveHandler extends ChannelInboundHandlerAdapter {
+
+        private final Handshake handshake;
+
+        private ActiveHandler(Handshake handshake) {
+            this.handshake = handshake;
+        }
+
         @Override
         public void channelActive(ChannelHandlerContext ctx) throws Exception {
-            channelPromise.setSuccess();
+            // Only records anything when neither the proxy nor the bounce server handler is in the pipeline
+            handshake.timings.markActive();
+            handshake.context = ctx;
+            if (handshake.background) {
+                // The handlers behind this one only hear about the connection once it is promoted
+                handshake.promise.trySuccess();
+                return;
+            }
+            handshake.live = true;
+            handshake.promise.setSuccess();
             connectionAttempted.set(true);
             super.channelActive(ctx);
         }
 
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (!handshake.live) {
+                // Standby and replaced connections are not listened to
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            super.channelRead(ctx, msg);
+        }
+
         @Override
         public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            if (!handshake.live) {
+                // A standby or a replaced connection closing is no news for the handlers behind this one
+                standbyLost(handshake);
+                return;
+            }
             connectionAttempted.set(true);
-            if (channelPromise.isSuccess()) {
+            Handshake next = standby;
+            if (next != null && next.context != null && currentConnection == handshake && promote(next, System.nanoTime(), "Failed over to the standby connection")) {
+                failovers.incrementAndGet();
+                return;
+            }
+            if (handshake.promise.isSuccess()) {
                 connectionStatusProperty.set(false);
                 super.channelInactive(ctx);
             }
         }
     }
 
-    private static class ClientOutboundHandler extends ChannelOutboundHandlerAdapter {
+    /**
+     * A frame that was written through {@link #writeUrgent(ByteBuf)}
+     */
+    private static class UrgentFrame {
+        private final ByteBuf frame;
+
+        private UrgentFrame(ByteBuf frame) {
+            this.frame = frame;
+        }
+    }
+
+    private static class HeldWrite {
+        private final Object         msg;
+        private final ChannelPromise promise;
+
+        private HeldWrite(Object msg, ChannelPromise promise) {
+            this.msg = msg;
+            this.promise = promise;
+        }
+    }
+
+    /**
+     * Holds on to outgoing messages while the channel is not writable instead of piling them up in the channel's
+     * outbound buffer, where nothing can overtake them. At most {@link #getMaxQueuedWrites()} messages are held, what
+     * happens beyond that is decided by the {@link OverflowPolicy}. Urgent frames skip the held messages and drop the
+     * ones they supersede.
+     */
+    private class ClientOutboundHandler extends ChannelDuplexHandler {
+
+        private final ArrayDeque<HeldWrite> held = new ArrayDeque<>();
+
+        private long unwritableSince;
+
         @Override
         public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-            super.write(ctx, msg, promise);
+            if (msg instanceof UrgentFrame) {
+                dropSuperseded();
+                ctx.writeAndFlush(((UrgentFrame) msg).frame, promise);
+            } else if (!held.isEmpty() || !ctx.channel().isWritable()) {
+                hold(msg, promise);
+            } else {
+                super.write(ctx, msg, promise);
+            }
+        }
+
+        private void hold(Object msg, ChannelPromise promise) {
+            if (overflowPolicy == OverflowPolicy.COALESCE_LATEST) {
+                Iterator<HeldWrite> it = held.iterator();
+                while (it.hasNext()) {
+                    HeldWrite write = it.next();
+                    if (isSameCommand(write.msg, msg)) {
+                        it.remove();
+                        drop(write);
+                        break;
+                    }
+                }
+            }
+            if (held.size() >= maxQueuedWrites) {
+                if (overflowPolicy == OverflowPolicy.REJECT) {
+                    ReferenceCountUtil.release(msg);
+                    promise.tryFailure(new IllegalStateException("Outbound queue is full"));
+                    droppedWrites.incrementAndGet();
+                    return;
+                }
+                drop(held.poll());
+            }
+            held.add(new HeldWrite(msg, promise));
+            queuedWrites = held.size();
+        }
+
+        private void drop(HeldWrite write) {
+            ReferenceCountUtil.release(write.msg);
+            write.promise.cancel(false);
+            droppedWrites.incrementAndGet();
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            if (!ctx.channel().isWritable()) {
+                unwritableSince = System.nanoTime();
+            } else if (unwritableSince != 0) {
+                unwritableTime.addAndGet(System.nanoTime() - unwritableSince);
+                unwritableSince = 0;
+            }
+            if (!held.isEmpty()) {
+                while (ctx.channel().isWritable() && !held.isEmpty()) {
+                    HeldWrite write = held.poll();
+                    ctx.write(write.msg, write.promise);
+                }
+                queuedWrites = held.size();
+                ctx.flush();
+            }
+            super.channelWritabilityChanged(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            HeldWrite write;
+            while ((write = held.poll()) != null) {
+                ReferenceCountUtil.release(write.msg);
+                write.promise.tryFailure(new ClosedChannelException());
+            }
+            queuedWrites = 0;
+            if (unwritableSince != 0) {
+                unwritableTime.addAndGet(System.nanoTime() - unwritableSince);
+                unwritableSince = 0;
+            }
+            super.channelInactive(ctx);
+        }
+
+        private void dropSuperseded() {
+            Iterator<HeldWrite> it = held.iterator();
+            while (it.hasNext()) {
+                HeldWrite write = it.next();
+                if (isSupersededByUrgent(write.msg)) {
+                    it.remove();
+                    ReferenceCountUtil.release(write.msg);
+                    write.promise.cancel(false);
+                    supersededWrites.incrementAndGet();
+                }
+            }
+            queuedWrites = held.size();
+        }
+    }
+
+    /**
+     * Frames are the same command when they start with the same marker byte
+     */
+    private static boolean isSameCommand(Object a, Object b) {
+        if (!(a instanceof ByteBuf) || !(b instanceof ByteBuf)) {
+            return false;
         }
+        ByteBuf bufA = (ByteBuf) a;
+        ByteBuf bufB = (ByteBuf) b;
+        return bufA.isReadable() && bufB.isReadable() && bufA.getByte(bufA.readerIndex()) == bufB.getByte(bufB.readerIndex());
     }
 }
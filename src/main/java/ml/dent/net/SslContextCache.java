@@ -0,0 +1,94 @@
+package ml.dent.net;
+
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds client {@link SslContext}s once per host and port and keeps them around, so reconnecting to the same server
+ * does not need to set up a new context and can resume the previous TLS session instead of doing a full handshake.
+ * <p>
+ * OpenSSL is used when netty-tcnative is available, otherwise the JDK provider is used.
+ */
+public class SslContextCache {
+
+    private static final ConcurrentHashMap<String, Entry> CONTEXTS = new ConcurrentHashMap<>();
+
+    private SslContextCache() {
+    }
+
+    /**
+     * @return The cached context for the given server, building it if this is the first connection to it
+     */
+    public static SslContext get(String host, int port) throws SSLException {
+        return getEntry(host, port).context;
+    }
+
+    /**
+     * Remembers the session negotiated with the given server.
+     *
+     * @return Whether the session is the same one that was negotiated last time, meaning it was resumed
+     */
+    public static boolean recordSession(String host, int port, SSLSession session) {
+        Entry entry = CONTEXTS.get(key(host, port));
+        if (entry == null || session == null) {
+            return false;
+        }
+        byte[] id = session.getId();
+        boolean resumed = id != null && id.length > 0 && Arrays.equals(id, entry.lastSessionId);
+        entry.lastSessionId = id;
+        return resumed;
+    }
+
+    /**
+     * @return The provider that new contexts are built with
+     */
+    public static SslProvider provider() {
+        return OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+    }
+
+    /**
+     * Drops all cached contexts and with them any sessions that could have been resumed
+     */
+    public static void clear() {
+        CONTEXTS.clear();
+    }
+
+    private static Entry getEntry(String host, int port) throws SSLException {
+        String key = key(host, port);
+        Entry entry = CONTEXTS.get(key);
+        if (entry == null) {
+            // Certificates are not verified, any certificate the server presents is trusted
+            SslContext context = SslContextBuilder.forClient()
+                    .sslProvider(provider())
+                    .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                    .build();
+            Entry existing = CONTEXTS.putIfAbsent(key, entry = new Entry(context));
+            if (existing != null) {
+                entry = existing;
+            }
+        }
+        return entry;
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    private static class Entry {
+        private final SslContext context;
+
+        private volatile byte[] lastSessionId;
+
+        private Entry(SslContext context) {
+            this.context = context;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package ml.dent.util;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free byte ring buffer for exactly one producer thread and one consumer thread. The bytes are stored
+ * in a direct buffer so they live outside of the Java heap.
+ * <p>
+ * The ring tracks a high and a low watermark and notifies a {@link WatermarkListener} when the occupancy crosses
+ * them, so the producer can be throttled while the consumer catches up.
+ */
+public class ByteRingBuffer {
+
+    /**
+     * Notified when the occupancy of the ring crosses one of its watermarks.
+     */
+    public interface WatermarkListener {
+        /**
+         * Called on the producer thread once the occupancy reaches the high watermark
+         */
+        void highWatermarkReached();
+
+        /**
+         * Called on the consumer thread once the occupancy falls back to the low watermark
+         */
+        void lowWatermarkReached();
+    }
+
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final int capacity;
+    private final int mask;
+    private final int highWatermark;
+    private final int lowWatermark;
+
+    private final ByteBuffer producerView;
+    private final ByteBuffer consumerView;
+
+    /**
+     * Total number of bytes read, only written by the consumer
+     */
+    private final AtomicLong head = new AtomicLong();
+    /**
+     * Total number of bytes written, only written by the producer
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicBoolean aboveHighWatermark = new AtomicBoolean();
+
+    /**
+     * Everything before this position is dropped instead of read
+     */
+    private volatile long discardMark;
+
+    private volatile Thread  waitingConsumer;
+    private volatile boolean closed;
+
+    private volatile WatermarkListener listener;
+
+    private volatile long maxOccupancy;
+    private volatile long producerStalls;
+    private volatile long consumerStalls;
+
+    /**
+     * @param capacity      the minimum number of bytes the ring can hold, rounded up to the next power of two
+     * @param highWatermark occupancy in bytes at which {@link WatermarkListener#highWatermarkReached()} is called
+     * @param lowWatermark  occupancy in bytes at which {@link WatermarkListener#lowWatermarkReached()} is called
+     */
+    public ByteRingBuffer(int capacity, int highWatermark, int lowWatermark) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30");
+        }
+        if (lowWatermark < 0 || lowWatermark > highWatermark || highWatermark > capacity) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low <= high <= capacity");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+
+        ByteBuffer storage = ByteBuffer.allocateDirect(size);
+        producerView = storage.duplicate();
+        consumerView = storage.duplicate();
+    }
+
+    public void setWatermarkListener(WatermarkListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Copies as many readable bytes from the given buffer into the ring as there is space for. Must only be called
+     * from the producer thread.
+     *
+     * @return the number of bytes copied, the rest are left readable in src
+     */
+    public int write(ByteBuf src) {
+        long t = tail.get();
+        // Discarded bytes free their space right away, the consumer no longer reads them
+        long occupancy = t - Math.max(head.get(), discardMark);
+        int n = (int) Math.min(capacity - occupancy, src.readableBytes());
+        if (n <= 0) {
+            return 0;
+        }
+        int offset = (int) (t & mask);
+        int first = Math.min(n, capacity - offset);
+        producerView.limit(offset + first).position(offset);
+        src.readBytes(producerView);
+        if (first < n) {
+            producerView.limit(n - first).position(0);
+            src.readBytes(producerView);
+        }
+
+        occupancy += n;
+        if (occupancy > maxOccupancy) {
+            maxOccupancy = occupancy;
+        }
+        // Flag the crossing before publishing so a consumer that sees the new bytes also sees the flag
+        if (occupancy >= highWatermark && aboveHighWatermark.compareAndSet(false, true)) {
+            producerStalls++;
+            WatermarkListener l = listener;
+            if (l != null) {
+                l.highWatermarkReached();
+            }
+        }
+        tail.lazySet(t + n);
+
+        Thread waiter = waitingConsumer;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return n;
+    }
+
+    /**
+     * Blocks until there is at least one byte to read, the ring is closed or the timeout elapses. Must only be called
+     * from the consumer thread.
+     *
+     * @return the number of readable bytes, 0 if the timeout elapsed, or -1 if the ring was closed
+     */
+    public int awaitReadable(long timeout, TimeUnit unit) {
+        long available = tail.get() - skipDiscarded();
+        if (available > 0) {
+            return (int) available;
+        }
+        consumerStalls++;
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waitingConsumer = Thread.currentThread();
+        try {
+            while (true) {
+                available = tail.get() - skipDiscarded();
+                if (available > 0) {
+                    return (int) available;
+                }
+                // An empty ring is always below the low watermark, make sure a throttled producer gets resumed
+                checkLowWatermark(0);
+                if (closed) {
+                    return -1;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return 0;
+                }
+                LockSupport.parkNanos(this, Math.min(remaining, PARK_NANOS));
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+
+    /**
+     * Copies as many bytes from the ring into dst as it has room for. Must only be called from the consumer thread.
+     *
+     * @return the number of bytes copied
+     */
+    public int read(ByteBuffer dst) {
+        long h = skipDiscarded();
+        long available = tail.get() - h;
+        int n = (int) Math.min(available, dst.remaining());
+        if (n <= 0) {
+            return 0;
+        }
+        int offset = (int) (h & mask);
+        int first = Math.min(n, capacity - offset);
+        consumerView.limit(offset + first).position(offset);
+        dst.put(consumerView);
+        if (first < n) {
+            consumerView.limit(n - first).position(0);
+            dst.put(consumerView);
+        }
+        head.lazySet(h + n);
+
+        checkLowWatermark(available - n);
+        return n;
+    }
+
+    /**
+     * Drops every byte written so far, the consumer skips them before it reads again. Bytes written afterwards are
+     * kept. May be called from any thread, as long as it does not race the producer.
+     */
+    public void discardWritten() {
+        discardMark = tail.get();
+        Thread waiter = waitingConsumer;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Moves the head past the bytes marked by {@link #discardWritten()}, only called from the consumer thread
+     *
+     * @return the head
+     */
+    private long skipDiscarded() {
+        long h = head.get();
+        long mark = discardMark;
+        if (mark > h) {
+            head.lazySet(mark);
+            checkLowWatermark(tail.get() - mark);
+            return mark;
+        }
+        return h;
+    }
+
+    private void checkLowWatermark(long occupancy) {
+        if (occupancy <= lowWatermark && aboveHighWatermark.get() && aboveHighWatermark.compareAndSet(true, false)) {
+            WatermarkListener l = listener;
+            if (l != null) {
+                l.lowWatermarkReached();
+            }
+        }
+    }
+
+    /**
+     * Wakes up the consumer and makes any further waits return immediately once the ring is drained
+     */
+    public void close() {
+        closed = true;
+        Thread waiter = waitingConsumer;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes currently waiting to be read
+     */
+    public int occupancy() {
+        return (int) (tail.get() - Math.max(head.get(), discardMark));
+    }
+
+    /**
+     * @return the highest occupancy the ring has reached
+     */
+    public long highWaterMark() {
+        return maxOccupancy;
+    }
+
+    /**
+     * @return the number of times the ring filled up to its high watermark and throttled the producer
+     */
+    public long producerStalls() {
+        return producerStalls;
+    }
+
+    /**
+     * @return the number of times the consumer found the ring empty and had to wait
+     */
+    public long consumerStalls() {
+        return consumerStalls;
+    }
+}
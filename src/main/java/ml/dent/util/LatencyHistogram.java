@@ -0,0 +1,204 @@
+package ml.dent.util;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed-size histogram of latencies over a sliding time window. The window is split into slices that are cleared and
+ * reused as time moves on, so the memory used never grows with the number of samples. Latencies are kept in
+ * logarithmic buckets with 8 buckets per power of two microseconds, which puts every reported percentile within 12.5%
+ * of the real value.
+ * <p>
+ * Jitter is the mean absolute difference between consecutive samples.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS         = SUB_BUCKETS * 30;
+
+    private final long sliceNanos;
+
+    private final int[][] counts;
+    private final long[]  totals;
+    private final long[]  maxima;
+    private final long[]  jitterSums;
+    private final long[]  jitterCounts;
+    private final long[]  epochs;
+
+    private long lastSample = -1;
+
+    /**
+     * @param window how far back samples are taken into account
+     * @param slices how many parts the window is split into, the window moves on in steps of one slice
+     */
+    public LatencyHistogram(long window, TimeUnit unit, int slices) {
+        if (slices < 1) {
+            throw new IllegalArgumentException("Window needs at least one slice");
+        }
+        sliceNanos = Math.max(1, unit.toNanos(window) / slices);
+        counts = new int[slices][BUCKETS];
+        totals = new long[slices];
+        maxima = new long[slices];
+        jitterSums = new long[slices];
+        jitterCounts = new long[slices];
+        epochs = new long[slices];
+    }
+
+    /**
+     * @param nanos the latency to record
+     */
+    public synchronized void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        int slice = currentSlice(System.nanoTime());
+        counts[slice][bucket(nanos)]++;
+        totals[slice]++;
+        maxima[slice] = Math.max(maxima[slice], nanos);
+        if (lastSample >= 0) {
+            jitterSums[slice] += Math.abs(nanos - lastSample);
+            jitterCounts[slice]++;
+        }
+        lastSample = nanos;
+    }
+
+    /**
+     * @return The statistics of all samples within the window
+     */
+    public synchronized Snapshot snapshot() {
+        long epoch = System.nanoTime() / sliceNanos;
+        int[] merged = new int[BUCKETS];
+        long count = 0;
+        long max = 0;
+        long jitterSum = 0;
+        long jitterCount = 0;
+        for (int s = 0; s < epochs.length; s++) {
+            if (totals[s] == 0 || epoch - epochs[s] >= epochs.length) {
+                continue;
+            }
+            for (int b = 0; b < BUCKETS; b++) {
+                merged[b] += counts[s][b];
+            }
+            count += totals[s];
+            max = Math.max(max, maxima[s]);
+            jitterSum += jitterSums[s];
+            jitterCount += jitterCounts[s];
+        }
+        return new Snapshot(count, percentile(merged, count, 0.5), percentile(merged, count, 0.9),
+                percentile(merged, count, 0.99), max, jitterCount == 0 ? 0 : jitterSum / jitterCount);
+    }
+
+    public synchronized void reset() {
+        for (int s = 0; s < epochs.length; s++) {
+            clear(s);
+        }
+        lastSample = -1;
+    }
+
+    private int currentSlice(long now) {
+        long epoch = now / sliceNanos;
+        int slice = (int) (epoch % epochs.length);
+        if (epochs[slice] != epoch) {
+            clear(slice);
+            epochs[slice] = epoch;
+        }
+        return slice;
+    }
+
+    private void clear(int slice) {
+        Arrays.fill(counts[slice], 0);
+        totals[slice] = 0;
+        maxima[slice] = 0;
+        jitterSums[slice] = 0;
+        jitterCounts[slice] = 0;
+    }
+
+    private static long percentile(int[] merged, long count, double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += merged[b];
+            if (seen >= rank) {
+                return bucketValue(b);
+            }
+        }
+        return bucketValue(BUCKETS - 1);
+    }
+
+    private static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min(BUCKETS - 1, (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub);
+    }
+
+    /**
+     * @return The middle of the bucket in nanoseconds
+     */
+    private static long bucketValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket * 1000L + 500;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lower = (long) (SUB_BUCKETS + sub) * width;
+        return (lower + width / 2) * 1000;
+    }
+
+    /**
+     * Statistics of a histogram at one point in time, all values in milliseconds
+     */
+    public static class Snapshot {
+        private final long count;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+        private final long jitter;
+
+        private Snapshot(long count, long p50, long p90, long p99, long max, long jitter) {
+            this.count = count;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+            this.jitter = jitter;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getP50() {
+            return p50 / 1e6;
+        }
+
+        public double getP90() {
+            return p90 / 1e6;
+        }
+
+        public double getP99() {
+            return p99 / 1e6;
+        }
+
+        public double getMax() {
+            return max / 1e6;
+        }
+
+        public double getJitter() {
+            return jitter / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms jitter=%.1fms",
+                    count, getP50(), getP90(), getP99(), getMax(), getJitter());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package ml.dent.video;
+
+import org.freedesktop.gstreamer.Element;
+import org.freedesktop.gstreamer.ElementFactory;
+
+/**
+ * Decoder configurations that can be used in place of decodebin, which picks whatever decoder ranks highest and leaves
+ * its threading at the default. The presets need GStreamer to be initialized before they can be described.
+ */
+public enum DecoderPreset {
+    /**
+     * Let decodebin pick the decoder
+     */
+    AUTO(null, null, null),
+    /**
+     * Software H.264 decoding with one frame per thread. Scales with cores on any stream, at the cost of one frame of
+     * latency per extra thread.
+     */
+    H264_FRAME_THREADS("h264parse", "avdec_h264", "frame"),
+    /**
+     * Software H.264 decoding with the slices of a frame spread over the threads. Adds no latency, but only scales if
+     * the encoder splits frames into several slices.
+     */
+    H264_SLICE_THREADS("h264parse", "avdec_h264", "slice"),
+    /**
+     * Software H.264 decoding on a single thread
+     */
+    H264_SINGLE_THREAD("h264parse", "avdec_h264", null);
+
+    private final String parser;
+    private final String decoder;
+    private final String threadType;
+
+    DecoderPreset(String parser, String decoder, String threadType) {
+        this.parser = parser;
+        this.decoder = decoder;
+        this.threadType = threadType;
+    }
+
+    /**
+     * @return Whether every element of the preset is installed
+     */
+    public boolean isAvailable() {
+        return decoder == null || ElementFactory.find(parser) != null && ElementFactory.find(decoder) != null;
+    }
+
+    /**
+     * Builds the pipeline fragment of the preset. The thread type is left out if the installed decoder is too old to
+     * have it.
+     *
+     * @param threads the number of decoder threads, 0 lets the decoder decide
+     */
+    public String describe(int threads) {
+        if (decoder == null) {
+            return "decodebin";
+        }
+        StringBuilder sb = new StringBuilder(parser).append(" ! ").append(decoder);
+        if (threadType == null) {
+            sb.append(" max-threads=1");
+            return sb.toString();
+        }
+        sb.append(" max-threads=").append(threads);
+        Element probe = ElementFactory.make(decoder, null);
+        try {
+            if (probe.listPropertyNames().contains("thread-type")) {
+                sb.append(" thread-type=").append(threadType);
+            }
+        } finally {
+            probe.dispose();
+        }
+        return sb.toString();
+    }
+}
@@ -18,18 +18,25 @@
  */
 package ml.dent.video;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyLongProperty;
+import javafx.beans.property.ReadOnlyLongWrapper;
 import javafx.beans.property.ReadOnlyObjectProperty;
 import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.scene.image.Image;
 import javafx.scene.image.PixelFormat;
 import javafx.scene.image.PixelWriter;
 import javafx.scene.image.WritableImage;
+import javafx.util.Callback;
 import org.freedesktop.gstreamer.*;
 import org.freedesktop.gstreamer.elements.AppSink;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -42,7 +49,46 @@ import java.util.concurrent.atomic.AtomicReference;
  */
 public class FXImageSink {
 
+    /**
+     * How decoded frames are turned into the JavaFX image
+     */
+    public enum RenderMode {
+        /**
+         * Every frame is copied into a newly allocated WritableImage
+         */
+        COPY,
+        /**
+         * Frames are copied into a single WritableImage that is kept for as long as the frame size stays the same
+         */
+        REUSE,
+        /**
+         * Frames are copied into the native buffer of a single JavaFX PixelBuffer that is kept for as long as the frame
+         * size stays the same, which skips the pixel conversion of {@link #REUSE}. Needs JavaFX 13 or newer and a little
+         * endian platform, otherwise {@link #REUSE} is used instead.
+         */
+        PIXEL_BUFFER
+    }
+
+    /**
+     * When decoded frames are handed to the JavaFX application thread
+     */
+    public enum PresentationMode {
+        /**
+         * Every frame posts its own update to the JavaFX event queue
+         */
+        RUN_LATER,
+        /**
+         * An AnimationTimer picks up the latest frame once per pulse, frames that arrive in between are coalesced
+         */
+        PULSE
+    }
+
     private final static String DEFAULT_CAPS;
+    private final static String PIXEL_BUFFER_CAPS = "video/x-raw, format=BGRA";
+
+    private final static Constructor<?> PIXEL_BUFFER_CONSTRUCTOR;
+    private final static Constructor<?> PIXEL_BUFFER_IMAGE_CONSTRUCTOR;
+    private final static Method         PIXEL_BUFFER_UPDATE;
 
     static {
         if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
@@ -50,6 +96,33 @@ public class FXImageSink {
         } else {
             DEFAULT_CAPS = "video/x-raw, format=xRGB";
         }
+
+        // PixelBuffer only exists from JavaFX 13, so look it up reflectively to keep running on older runtimes
+        Constructor<?> pixelBufferConstructor = null;
+        Constructor<?> imageConstructor = null;
+        Method update = null;
+        if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+            try {
+                Class<?> pixelBufferClass = Class.forName("javafx.scene.image.PixelBuffer");
+                pixelBufferConstructor = pixelBufferClass.getConstructor(int.class, int.class, java.nio.Buffer.class, PixelFormat.class);
+                imageConstructor = WritableImage.class.getConstructor(pixelBufferClass);
+                update = pixelBufferClass.getMethod("updateBuffer", Callback.class);
+            } catch (ReflectiveOperationException ignored) {
+                pixelBufferConstructor = null;
+                imageConstructor = null;
+                update = null;
+            }
+        }
+        PIXEL_BUFFER_CONSTRUCTOR = pixelBufferConstructor;
+        PIXEL_BUFFER_IMAGE_CONSTRUCTOR = imageConstructor;
+        PIXEL_BUFFER_UPDATE = update;
+    }
+
+    /**
+     * @return Whether the running JavaFX version supports {@link RenderMode#PIXEL_BUFFER}
+     */
+    public static boolean isPixelBufferSupported() {
+        return PIXEL_BUFFER_IMAGE_CONSTRUCTOR != null;
     }
 
     private final AppSink                      sink;
@@ -58,8 +131,25 @@ public class FXImageSink {
     private final NewSampleListener            newSampleListener;
     private final NewPrerollListener           newPrerollListener;
 
-    private Sample activeSample;
-    private Buffer activeBuffer;
+    private RenderMode renderMode;
+
+    private WritableImage reusableImage;
+
+    // Only the PixelBuffer's own memory is handed to JavaFX, so no GStreamer buffer is read once it is released
+    private Object        pixelBuffer;
+    private ByteBuffer    pixelBufferBytes;
+    private WritableImage pixelBufferImage;
+    private ByteBuffer    framePixels;
+
+    private final Callback<Object, ?> pixelBufferUpdate;
+
+    private final ReadOnlyLongWrapper renderTime;
+
+    private final    AnimationTimer   pulsePresenter;
+    private volatile PresentationMode presentationMode;
+
+    private final AtomicLong presentedFrames;
+    private final AtomicLong coalescedFrames;
 
     private int requestWidth;
     private int requestHeight;
@@ -85,9 +175,28 @@ public class FXImageSink {
         newPrerollListener = new NewPrerollListener();
         sink.connect(newSampleListener);
         sink.connect(newPrerollListener);
-        sink.setCaps(Caps.fromString(DEFAULT_CAPS));
+        renderMode = isPixelBufferSupported() ? RenderMode.PIXEL_BUFFER : RenderMode.REUSE;
+        sink.setCaps(Caps.fromString(buildCapsString()));
         image = new ReadOnlyObjectWrapper<>();
+        renderTime = new ReadOnlyLongWrapper();
         pending = new AtomicReference<>();
+        presentedFrames = new AtomicLong();
+        coalescedFrames = new AtomicLong();
+        pixelBufferUpdate = buffer -> {
+            pixelBufferBytes.clear();
+            framePixels.limit(Math.min(framePixels.limit(), pixelBufferBytes.capacity()));
+            pixelBufferBytes.put(framePixels);
+            pixelBufferBytes.clear();
+            // null marks the whole buffer as dirty
+            return null;
+        };
+        pulsePresenter = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                updateImage();
+            }
+        };
+        setPresentationMode(PresentationMode.PULSE);
     }
 
     /**
@@ -102,6 +211,78 @@ public class FXImageSink {
         return image.getReadOnlyProperty();
     }
 
+    /**
+     * Property holding how long it took to turn the last video frame into an image, in nanoseconds. Only updated on
+     * the JavaFX application thread.
+     *
+     * @return render time property for the last video frame
+     */
+    public ReadOnlyLongProperty renderTimeProperty() {
+        return renderTime.getReadOnlyProperty();
+    }
+
+    /**
+     * Set how frames are turned into images. {@link RenderMode#PIXEL_BUFFER} falls back to {@link RenderMode#REUSE}
+     * if the runtime does not support it. This will set up the Caps on the wrapped AppSink.
+     *
+     * @param mode render mode
+     * @return this for chaining
+     */
+    public FXImageSink setRenderMode(RenderMode mode) {
+        if (mode == RenderMode.PIXEL_BUFFER && !isPixelBufferSupported()) {
+            mode = RenderMode.REUSE;
+        }
+        renderMode = mode;
+        sink.setCaps(Caps.fromString(buildCapsString()));
+        return this;
+    }
+
+    public RenderMode getRenderMode() {
+        return renderMode;
+    }
+
+    /**
+     * Set when frames are handed to the JavaFX application thread. Can be called from any thread, but the change
+     * will happen asynchronously if not called on JavaFX application thread.
+     *
+     * @param mode presentation mode
+     * @return this for chaining
+     */
+    public FXImageSink setPresentationMode(PresentationMode mode) {
+        presentationMode = mode;
+        Runnable apply = () -> {
+            if (mode == PresentationMode.PULSE) {
+                pulsePresenter.start();
+            } else {
+                pulsePresenter.stop();
+            }
+        };
+        if (Platform.isFxApplicationThread()) {
+            apply.run();
+        } else {
+            Platform.runLater(apply);
+        }
+        return this;
+    }
+
+    public PresentationMode getPresentationMode() {
+        return presentationMode;
+    }
+
+    /**
+     * @return The number of frames that have been turned into an image
+     */
+    public long getPresentedFrameCount() {
+        return presentedFrames.get();
+    }
+
+    /**
+     * @return The number of frames that were replaced by a newer frame before the application thread got to them
+     */
+    public long getCoalescedFrameCount() {
+        return coalescedFrames.get();
+    }
+
     /**
      * Get access to the AppSink element this class wraps.
      *
@@ -155,10 +336,12 @@ public class FXImageSink {
     }
 
     private String buildCapsString() {
+        // PixelBuffer needs premultiplied BGRA, so the padding byte of BGRx must be a real, opaque alpha value
+        String baseCaps = renderMode == RenderMode.PIXEL_BUFFER ? PIXEL_BUFFER_CAPS : DEFAULT_CAPS;
         if (requestWidth < 1 && requestHeight < 1 && requestRate < 1) {
-            return DEFAULT_CAPS;
+            return baseCaps;
         }
-        StringBuilder sb = new StringBuilder(DEFAULT_CAPS);
+        StringBuilder sb = new StringBuilder(baseCaps);
         if (requestWidth > 0) {
             sb.append(",width=");
             sb.append(requestWidth);
@@ -183,6 +366,34 @@ public class FXImageSink {
         return img;
     }
 
+    private WritableImage copyBytesToReusableImage(ByteBuffer pixels, int width, int height) {
+        if (reusableImage == null || (int) reusableImage.getWidth() != width || (int) reusableImage.getHeight() != height) {
+            reusableImage = new WritableImage(width, height);
+        }
+        reusableImage.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getByteBgraInstance(), pixels, width * 4);
+        return reusableImage;
+    }
+
+    private WritableImage copyBytesToPixelBuffer(ByteBuffer pixels, int width, int height) {
+        try {
+            if (pixelBufferImage == null || (int) pixelBufferImage.getWidth() != width || (int) pixelBufferImage.getHeight() != height) {
+                pixelBufferBytes = ByteBuffer.allocateDirect(width * height * 4);
+                pixelBuffer = PIXEL_BUFFER_CONSTRUCTOR.newInstance(width, height, pixelBufferBytes, PixelFormat.getByteBgraPreInstance());
+                pixelBufferImage = (WritableImage) PIXEL_BUFFER_IMAGE_CONSTRUCTOR.newInstance(pixelBuffer);
+            }
+            framePixels = pixels;
+            try {
+                // Lets JavaFX know the content changed, the render thread won't read the buffer while it is written
+                PIXEL_BUFFER_UPDATE.invoke(pixelBuffer, pixelBufferUpdate);
+            } finally {
+                framePixels = null;
+            }
+            return pixelBufferImage;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to update the PixelBuffer", e);
+        }
+    }
+
     private void updateImage() {
         if (!Platform.isFxApplicationThread()) {
             throw new IllegalStateException("Not on FX application thread");
@@ -191,25 +402,36 @@ public class FXImageSink {
         if (newSample == null) {
             return;
         }
-        Sample oldSample = activeSample;
-        Buffer oldBuffer = activeBuffer;
-
-        activeSample = newSample;
+        long start = System.nanoTime();
         Structure capsStruct = newSample.getCaps().getStructure(0);
         int width = capsStruct.getInteger("width");
         int height = capsStruct.getInteger("height");
-        activeBuffer = newSample.getBuffer();
+        Buffer buffer = newSample.getBuffer();
 
-        WritableImage img = convertBytesToImage(activeBuffer.map(false), width, height);
+        ByteBuffer pixels = buffer.map(false);
+        WritableImage img;
+        try {
+            switch (renderMode) {
+                case PIXEL_BUFFER:
+                    img = copyBytesToPixelBuffer(pixels, width, height);
+                    break;
+                case REUSE:
+                    img = copyBytesToReusableImage(pixels, width, height);
+                    break;
+                default:
+                    img = convertBytesToImage(pixels, width, height);
+                    break;
+            }
+        } finally {
+            // Every mode copies the pixels, so the frame goes back to GStreamer right away
+            buffer.unmap();
+            newSample.dispose();
+        }
 
         image.set(img);
 
-        if (oldBuffer != null) {
-            oldBuffer.unmap();
-        }
-        if (oldSample != null) {
-            oldSample.dispose();
-        }
+        presentedFrames.incrementAndGet();
+        renderTime.set(System.nanoTime() - start);
     }
 
     private void clearImage() {
@@ -221,13 +443,23 @@ public class FXImageSink {
             newSample.dispose();
         }
         image.set(null);
-        if (activeBuffer != null) {
-            activeBuffer.unmap();
-            activeBuffer = null;
+        reusableImage = null;
+        // The render thread may still draw the last image, which keeps its PixelBuffer alive until it is done
+        pixelBufferImage = null;
+        pixelBuffer = null;
+        pixelBufferBytes = null;
+    }
+
+    private void offerSample(Sample s) {
+        s = pending.getAndSet(s);
+        if (s != null) {
+            // if not null the Sample has not been taken by the application thread so
+            // dispose
+            coalescedFrames.incrementAndGet();
+            s.dispose();
         }
-        if (activeSample != null) {
-            activeSample.dispose();
-            activeSample = null;
+        if (presentationMode == PresentationMode.RUN_LATER) {
+            Platform.runLater(() -> updateImage());
         }
     }
 
@@ -235,14 +467,7 @@ public class FXImageSink {
 
         @Override
         public FlowReturn newSample(AppSink appsink) {
-            Sample s = appsink.pullSample();
-            s = pending.getAndSet(s);
-            if (s != null) {
-                // if not null the Sample has not been taken by the application thread so
-                // dispose
-                s.dispose();
-            }
-            Platform.runLater(() -> updateImage());
+            offerSample(appsink.pullSample());
             return FlowReturn.OK;
         }
     }
@@ -251,14 +476,7 @@ public class FXImageSink {
 
         @Override
         public FlowReturn newPreroll(AppSink appsink) {
-            Sample s = appsink.pullPreroll();
-            s = pending.getAndSet(s);
-            if (s != null) {
-                // if not null the Sample has not been taken by the application thread so
-                // dispose
-                s.dispose();
-            }
-            Platform.runLater(() -> updateImage());
+            offerSample(appsink.pullPreroll());
             return FlowReturn.OK;
         }
     }
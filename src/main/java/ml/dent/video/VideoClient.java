@@ -1,38 +1,199 @@
 package ml.dent.video;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import javafx.beans.property.*;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import ml.dent.app.StatusHandler;
+import ml.dent.net.ConnectionReplacedEvent;
+import ml.dent.net.EventLoopProvider;
 import ml.dent.net.SimpleNetworkClient;
+import ml.dent.util.ByteRingBuffer;
 import ml.dent.util.DaemonThreadFactory;
-import org.freedesktop.gstreamer.Buffer;
-import org.freedesktop.gstreamer.Bus;
-import org.freedesktop.gstreamer.Gst;
-import org.freedesktop.gstreamer.Pipeline;
+import ml.dent.util.LatencyHistogram;
+import ml.dent.util.UIUtil;
+import org.freedesktop.gstreamer.*;
 import org.freedesktop.gstreamer.elements.AppSink;
 import org.freedesktop.gstreamer.elements.AppSrc;
+import org.freedesktop.gstreamer.event.CapsEvent;
+import org.freedesktop.gstreamer.event.Event;
+import org.freedesktop.gstreamer.event.FlushStartEvent;
+import org.freedesktop.gstreamer.event.FlushStopEvent;
+import org.freedesktop.gstreamer.glib.GError;
+import org.freedesktop.gstreamer.query.LatencyQuery;
 
 import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class VideoClient extends SimpleNetworkClient {
 
+    /**
+     * How bytes received from the server are handed to the GStreamer pipeline
+     */
+    public enum IngestMode {
+        /**
+         * Bytes are queued one at a time and pulled by the appsrc need-data callback
+         */
+        QUEUE,
+        /**
+         * Each received buffer is copied in bulk into a GStreamer buffer and pushed into the appsrc from the event loop.
+         * Reading from the server is paused while the appsrc holds more than its maximum of queued bytes, and while
+         * the pipeline is being flushed.
+         */
+        PUSH,
+        /**
+         * Received buffers are copied into a bounded off-heap ring that the appsrc need-data callback drains. Reading
+         * from the server is paused while the ring is above its high watermark.
+         */
+        RING
+    }
+
+    /**
+     * How the pipeline trades latency against smoothness
+     */
+    public enum PipelineProfile {
+        /**
+         * Every received byte is decoded and shown, however far behind the video falls. Decodes with frame threads,
+         * which keep up with the most video at the cost of a frame of latency per extra thread.
+         */
+        SMOOTH(DecoderPreset.H264_FRAME_THREADS),
+        /**
+         * Buffers are timestamped when they enter the pipeline and anything older than the maximum staleness is
+         * dropped before decoding. After a drop, frames are skipped until the next keyframe so the decoder never
+         * works from a broken reference frame, and only the newest decoded frame is kept for display. Decodes with
+         * slice threads, which add no latency.
+         */
+        LOW_LATENCY(DecoderPreset.H264_SLICE_THREADS);
+
+        private final DecoderPreset decoderPreset;
+
+        PipelineProfile(DecoderPreset decoderPreset) {
+            this.decoderPreset = decoderPreset;
+        }
+
+        /**
+         * @return The decoder preset used with this profile unless another one is set
+         */
+        public DecoderPreset getDecoderPreset() {
+            return decoderPreset;
+        }
+    }
+
+    private static final int RING_CAPACITY       = 4 * 1024 * 1024;
+    private static final int RING_HIGH_WATERMARK = 3 * 1024 * 1024;
+    private static final int RING_LOW_WATERMARK  = 1024 * 1024;
+
+    // In PUSH mode the appsrc queue takes the place of the ring
+    private static final int PUSH_MAX_BYTES = RING_HIGH_WATERMARK;
+
     private LinkedBlockingQueue<Byte> incomingBytes;
+    private ByteRingBuffer            ringBuffer;
+
+    private IngestMode ingestMode = IngestMode.RING;
+
+    private PipelineProfile pipelineProfile = PipelineProfile.LOW_LATENCY;
+    private long            maxStaleness    = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private volatile AppSrc src;
 
     private StatusHandler logger = StatusHandler.getInstance();
 
     public VideoClient(String host, int port) {
-        super(host, port, '1');
+        this(host, port, EventLoopProvider.getBulk());
+    }
+
+    public VideoClient(String host, int port, EventLoopProvider eventLoopProvider) {
+        super(host, port, '1', false, eventLoopProvider);
         incomingBytes = new LinkedBlockingQueue<>();
+        ringBuffer = new ByteRingBuffer(RING_CAPACITY, RING_HIGH_WATERMARK, RING_LOW_WATERMARK);
+        ringBuffer.setWatermarkListener(new ByteRingBuffer.WatermarkListener() {
+            @Override
+            public void highWatermarkReached() {
+                // Always called from the event loop, as that is the only thread that writes to the ring
+                Channel ch = getChannel();
+                if (ch != null) {
+                    ch.config().setAutoRead(false);
+                }
+            }
+
+            @Override
+            public void lowWatermarkReached() {
+                resumeReading();
+            }
+        });
+    }
+
+    /**
+     * Hands any bytes the connection held back to the pipeline and starts reading from the server again, on the
+     * connection's event loop
+     */
+    private void resumeReading() {
+        Channel ch = getChannel();
+        if (ch != null) {
+            ch.eventLoop().execute(() -> {
+                VideoReceiver receiver = ch.pipeline().get(VideoReceiver.class);
+                if (receiver != null) {
+                    receiver.resumeReading(ch);
+                } else {
+                    ch.config().setAutoRead(true);
+                }
+            });
+        }
+    }
+
+    /**
+     * Changing the ingest mode will not take effect until the pipeline is restarted
+     */
+    public void setIngestMode(IngestMode mode) {
+        ingestMode = mode;
+    }
+
+    public IngestMode getIngestMode() {
+        return ingestMode;
+    }
+
+    /**
+     * Changing the profile will not take effect until the pipeline is restarted
+     */
+    public void setPipelineProfile(PipelineProfile profile) {
+        pipelineProfile = profile;
+    }
+
+    public PipelineProfile getPipelineProfile() {
+        return pipelineProfile;
+    }
+
+    /**
+     * Sets how old received video may get in {@link PipelineProfile#LOW_LATENCY} before it is dropped. Will not take
+     * effect until the pipeline is restarted.
+     */
+    public void setMaxStaleness(long staleness, TimeUnit unit) {
+        maxStaleness = unit.toNanos(staleness);
+    }
+
+    public long getMaxStaleness(TimeUnit unit) {
+        return unit.convert(maxStaleness, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the ring used by {@link IngestMode#RING}, mostly useful for its occupancy and stall statistics
+     */
+    public ByteRingBuffer getIngestBuffer() {
+        return ringBuffer;
     }
 
     @Override
@@ -49,7 +210,8 @@ public class VideoClient extends SimpleNetworkClient {
         return super.connect(newHandlers);
     }
 
-    private Pipeline pipeline;
+    private Pipeline    pipeline;
+    private FXImageSink imageSink;
 
     private BooleanProperty playingProperty = new SimpleBooleanProperty(false);
 
@@ -58,50 +220,111 @@ public class VideoClient extends SimpleNetworkClient {
     }
 
     public boolean isPlaying() {
-        return pipeline.isPlaying();
+        return pipeline != null && pipeline.isPlaying();
+    }
+
+    /**
+     * @return The sink rendering the video into the ImageView, null until {@link #startVideo(ImageView)} is called
+     */
+    public FXImageSink getImageSink() {
+        return imageSink;
     }
 
     private ScheduledExecutorService videoMonitor = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory());
 
-    public void startVideo(ImageView iv) {
+    private static final String SCALE_CAPS = "video/x-raw";
+
+    private static final String[] PIPELINE_ELEMENTS = {"appsrc", "queue", "decodebin", "videoscale", "capsfilter", "videoconvert", "appsink"};
+
+    private volatile VideoStartupTimings startupTimings;
+    private CompletableFuture<Void>      startup;
+
+    /**
+     * Initializes GStreamer and builds the pipeline on a background thread, so the window can show in the meantime.
+     * The pipeline is left in PAUSED, ready to go, and is only set to PLAYING once the client is connected.
+     *
+     * @return A future completed once the pipeline is ready to play
+     */
+    public CompletableFuture<Void> startVideo(ImageView iv) {
+        startupTimings = new VideoStartupTimings();
+        startup = CompletableFuture.runAsync(() -> prepareVideo(iv), videoMonitor);
+        startup.whenComplete((result, cause) -> {
+            if (cause != null) {
+                logger.offerError("Unable to start video: " + cause.getMessage(), "Video failed to start");
+            }
+        });
+        return startup;
+    }
+
+    /**
+     * @return The timings of the last start of the video, null if it was never started
+     */
+    public VideoStartupTimings getStartupTimings() {
+        return startupTimings;
+    }
+
+    private void prepareVideo(ImageView iv) {
+        VideoStartupTimings timings = startupTimings;
         BooleanProperty gstDone = new SimpleBooleanProperty(false);
         logger.offerOperation("Initializing Gstreamer", "Successfully initialized Gstreamer", gstDone);
         GStreamerLibrary gstLib = GStreamerLibrary.getInstance();
         gstLib.init();
+        timings.markInitialized();
+        UIUtil.runOnJFXThread(() -> gstDone.set(true));
 
-        while (!Gst.isInitialized())
-            ;
-        gstDone.set(true);
-
-        String parseString = "appsrc name=src is-live=true ! queue ! decodebin ! videoconvert ! appsink name=sink sync=false";
+        // Looking the elements up loads their features from the registry now rather than while parsing
+        Registry.get();
+        for (String element : PIPELINE_ELEMENTS) {
+            if (ElementFactory.find(element) == null) {
+                logger.offerStatus("GStreamer element " + element + " is not installed", StatusHandler.WARNING);
+            }
+        }
+        timings.markRegistryLoaded();
 
         BooleanProperty pipelineDone = new SimpleBooleanProperty(false);
         logger.offerOperation("Building pipeline", "Successfully built pipeline", pipelineDone, StatusHandler.DEBUG);
-        pipeline = (Pipeline) Gst.parseLaunch(parseString);
-        AppSrc src = (AppSrc) pipeline.getElementByName("src");
-        src.set("emit-signals", true);
-        src.connect((AppSrc.NEED_DATA) (elem, size) -> {
-            Buffer buf = new Buffer(size);
-            byte[] bytes = new byte[size];
-
-            for (int i = 0; i < size; i++) {
-                try {
-                    bytes[i] = incomingBytes.take();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-
-            buf.map(true).put(ByteBuffer.wrap(bytes));
-            elem.pushBuffer(buf);
-        });
+        pipeline = buildPipeline();
+        // Parsers and decoders are plugged in by decodebin once the stream type is known
+        pipeline.connect((Bin.DEEP_ELEMENT_ADDED) (top, bin, element) -> attachProbes(element));
+        for (Element element : pipeline.getElementsRecursive()) {
+            attachProbes(element);
+        }
+        configureSource((AppSrc) pipeline.getElementByName("src"));
 
         AppSink sink = (AppSink) pipeline.getElementByName("sink");
-        sink.set("max-buffers", 5000);
+        sink.set("max-buffers", pipelineProfile == PipelineProfile.LOW_LATENCY ? 1 : 5000);
         sink.set("drop", true);
-        FXImageSink imageSink = new FXImageSink(sink);
+        imageSink = new FXImageSink(sink);
+        sink.getStaticPad("sink").addDataProbe((pad, buffer) -> {
+            long started = resyncStart;
+            if (started != 0) {
+                resyncStart = 0;
+                resyncTime.set(System.nanoTime() - started);
+            }
+            return PadProbeReturn.OK;
+        });
+        // Scaling before the conversion means only the pixels that end up on screen are converted and copied
+        Pad scaleSink = pipeline.getElementByName("scale").getStaticPad("sink");
+        scaleSink.addEventProbe(sourceSize);
+        scaleSink.addDataProbe(sourceSize);
+        scaleCaps = pipeline.getElementByName("scalecaps");
+        Pad convertSrc = pipeline.getElementByName("convert").getStaticPad("src");
+        convertSrc.addEventProbe(convertedSize);
+        convertSrc.addDataProbe(convertedSize);
+        applyDisplaySize();
         ReadOnlyObjectProperty<Image> prop = imageSink.imageProperty();
-        iv.imageProperty().bind(prop);
+        UIUtil.runOnJFXThread(() -> {
+            iv.imageProperty().bind(prop);
+            prop.addListener(new ChangeListener<Image>() {
+                @Override
+                public void changed(ObservableValue<? extends Image> obs, Image oldVal, Image newVal) {
+                    if (newVal != null) {
+                        timings.markFirstFrame();
+                        prop.removeListener(this);
+                    }
+                }
+            });
+        });
 
         pipeline.getBus().connect((Bus.ERROR) (source, code, message) -> {
             System.out.println("Error Source: " + source.getName());
@@ -113,7 +336,8 @@ public class VideoClient extends SimpleNetworkClient {
             System.out.println("Info Code: " + code);
             System.out.println("Info Message: " + message);
         });
-        pipelineDone.set(true);
+        timings.markPipelineBuilt();
+        UIUtil.runOnJFXThread(() -> pipelineDone.set(true));
 
 //		pipeline.getBus().connect((Bus.MESSAGE) (bus, message) -> {
 //			System.out.println("Bus Message : " + message.getStructure());
@@ -122,10 +346,344 @@ public class VideoClient extends SimpleNetworkClient {
         videoMonitor.scheduleAtFixedRate(() -> {
             bitrate.set((byteCount - lastByteCount) * 8);
             lastByteCount = byteCount;
+            long nanos = ingestNanos.get();
+            ingestTime.set(nanos - lastIngestNanos);
+            lastIngestNanos = nanos;
+            LatencyQuery query = new LatencyQuery();
+            if (pipeline.query(query)) {
+                pipelineLatency.set(query.getMinimumLatency());
+            }
+            Element queue = pipeline.getElementByName("buffer");
+            if (queue != null) {
+                bufferedTime.set(((Number) queue.get("current-level-time")).longValue());
+            }
+            long frames = decodeTimer.frames.get();
+            decodedFrameRate.set(frames - lastDecodedFrames);
+            lastDecodedFrames = frames;
+            long converted = convertedSize.bytes.get();
+            convertedByteRate.set(converted - lastConvertedBytes);
+            lastConvertedBytes = converted;
         }, 1, 1, TimeUnit.SECONDS);
 
+        // A live pipeline does not wait for data in PAUSED, but every element is set up, so going to PLAYING once
+        // the connection is up is cheap
+        pipeline.pause();
+        pipeline.getState(5, TimeUnit.SECONDS);
+        timings.markPrerolled();
+
+        connectionActiveProperty().addListener((obs, oldVal, newVal) -> {
+            if (newVal) {
+                videoMonitor.execute(this::resyncVideo);
+            } else {
+                discardStream();
+                videoMonitor.execute(this::flushVideo);
+            }
+        });
+        // A switchover or failover keeps the connection active, but the new connection's stream starts over
+        channelGenerationProperty().addListener((obs, oldVal, newVal) -> {
+            discardStream();
+            videoMonitor.execute(() -> {
+                flushVideo();
+                resyncVideo();
+            });
+        });
         logger.offerStatus("Ready to play video", StatusHandler.INFO);
-        pipeline.play();
+        if (isConnectionActive()) {
+            pipeline.play();
+        }
+    }
+
+    /**
+     * Feeds the appsrc the way the ingest mode asks for. The pipeline is built around the appsrc, this only needs the
+     * appsrc itself.
+     */
+    void configureSource(AppSrc appSrc) {
+        appSrc.setStreamType(AppSrc.StreamType.STREAM);
+        if (ingestMode == IngestMode.QUEUE) {
+            appSrc.set("emit-signals", true);
+            appSrc.connect((AppSrc.NEED_DATA) (elem, size) -> {
+                if (flushing) {
+                    // The bytes waiting now belong to the next stream, they have to wait for the flush
+                    return;
+                }
+                long start = System.nanoTime();
+                byte[] bytes = new byte[size];
+
+                for (int i = 0; i < size; i++) {
+                    try {
+                        Byte b = null;
+                        while (b == null) {
+                            if (flushing) {
+                                // Give the streaming thread back so the flush can go through
+                                return;
+                            }
+                            b = incomingBytes.poll(FLUSH_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                        }
+                        bytes[i] = b;
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                Buffer buf = new Buffer(size);
+                buf.map(true).put(ByteBuffer.wrap(bytes));
+                buf.unmap();
+                ingestNanos.addAndGet(System.nanoTime() - start);
+                elem.pushBuffer(buf);
+            });
+        } else if (ingestMode == IngestMode.RING) {
+            appSrc.set("emit-signals", true);
+            appSrc.connect((AppSrc.NEED_DATA) (elem, size) -> {
+                int available;
+                do {
+                    available = ringBuffer.awaitReadable(FLUSH_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                } while (available == 0 && !flushing);
+                if (available <= 0 || flushing) {
+                    // Ring was closed because the pipeline is shutting down, or a flush needs the streaming thread.
+                    // Bytes that are waiting during a flush belong to the next stream and stay in the ring.
+                    return;
+                }
+                long start = System.nanoTime();
+                Buffer buf = new Buffer(available);
+                ringBuffer.read(buf.map(true));
+                buf.unmap();
+                ingestNanos.addAndGet(System.nanoTime() - start);
+                elem.pushBuffer(buf);
+            });
+        } else {
+            // Buffers are pushed by the VideoReceiver as they arrive. The appsrc only signals when its queue is full,
+            // and when it runs empty again
+            appSrc.set("emit-signals", true);
+            appSrc.setMaxBytes(PUSH_MAX_BYTES);
+            appSrc.connect((AppSrc.ENOUGH_DATA) elem -> {
+                // Emitted by pushBuffer, on the event loop
+                Channel ch = getChannel();
+                if (ch != null) {
+                    ch.config().setAutoRead(false);
+                }
+            });
+            appSrc.connect((AppSrc.NEED_DATA) (elem, size) -> {
+                Channel ch = getChannel();
+                if (ch != null && !ch.config().isAutoRead()) {
+                    resumeReading();
+                }
+            });
+        }
+        src = appSrc;
+    }
+
+    /**
+     * Parses the pipeline with the configured decoder, falling back to decodebin if the decoder is not installed or
+     * its description does not parse
+     */
+    private Pipeline buildPipeline() {
+        String decoder = decoderDescription;
+        if (decoder == null) {
+            DecoderPreset preset = getDecoderPreset();
+            if (preset.isAvailable()) {
+                decoder = preset.describe(decoderThreads);
+            } else {
+                logger.offerStatus("Decoder preset " + preset + " is not installed, using decodebin", StatusHandler.WARNING);
+                decoder = DecoderPreset.AUTO.describe(0);
+            }
+        }
+        List<GError> errors = new ArrayList<>();
+        Pipeline parsed = null;
+        try {
+            parsed = (Pipeline) Gst.parseLaunch(buildPipelineDescription(decoder), errors);
+        } catch (GstException ignored) {
+            // Reported below together with the recoverable errors
+        }
+        if (parsed != null && errors.isEmpty()) {
+            activeDecoder = decoder;
+            return parsed;
+        }
+        if (parsed != null) {
+            parsed.dispose();
+        }
+        logger.offerStatus("Decoder \"" + decoder + "\" does not parse, using decodebin", StatusHandler.WARNING);
+        activeDecoder = DecoderPreset.AUTO.describe(0);
+        return (Pipeline) Gst.parseLaunch(buildPipelineDescription(activeDecoder));
+    }
+
+    private String buildPipelineDescription(String decoder) {
+        if (pipelineProfile == PipelineProfile.LOW_LATENCY) {
+            // The leaky queue sits in front of the decoder, so stale video is dropped before any time is spent on it
+            return "appsrc name=src is-live=true do-timestamp=true format=time"
+                    + " ! queue name=buffer leaky=downstream max-size-buffers=0 max-size-bytes=0 max-size-time=" + maxStaleness
+                    + " ! " + decoder + " ! videoscale name=scale ! capsfilter name=scalecaps ! videoconvert name=convert ! appsink name=sink sync=false";
+        }
+        return "appsrc name=src is-live=true ! queue name=buffer ! " + decoder + " ! videoscale name=scale ! capsfilter name=scalecaps ! videoconvert name=convert ! appsink name=sink sync=false";
+    }
+
+    private DecoderPreset decoderPreset;
+    private String        decoderDescription;
+    private int           decoderThreads = Runtime.getRuntime().availableProcessors();
+
+    private volatile String activeDecoder;
+
+    /**
+     * Changing the decoder will not take effect until the pipeline is restarted
+     *
+     * @param preset the decoder to use, or null to use the one that suits the pipeline profile
+     */
+    public void setDecoderPreset(DecoderPreset preset) {
+        decoderPreset = preset;
+        decoderDescription = null;
+    }
+
+    /**
+     * @return The decoder preset that was set, or the one of the pipeline profile if none was
+     */
+    public DecoderPreset getDecoderPreset() {
+        return decoderPreset != null ? decoderPreset : pipelineProfile.getDecoderPreset();
+    }
+
+    /**
+     * Uses the given pipeline fragment to decode instead of a preset, for example
+     * {@code "h264parse ! avdec_h264 max-threads=2"}. It has to take the received stream and output raw video. Will
+     * not take effect until the pipeline is restarted.
+     */
+    public void setDecoderDescription(String description) {
+        decoderDescription = description;
+    }
+
+    /**
+     * Sets how many threads the decoder of a threaded preset uses, 0 lets the decoder decide. Will not take effect
+     * until the pipeline is restarted.
+     */
+    public void setDecoderThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Decoder threads cannot be negative");
+        }
+        decoderThreads = threads;
+    }
+
+    public int getDecoderThreads() {
+        return decoderThreads;
+    }
+
+    /**
+     * @return The decoder fragment the running pipeline was built with, null before the pipeline is built
+     */
+    public String getActiveDecoder() {
+        return activeDecoder;
+    }
+
+    private final FrameSize sourceSize    = new FrameSize("Source", () -> videoMonitor.execute(this::applyDisplaySize));
+    private final FrameSize convertedSize = new FrameSize("Display", null);
+
+    /**
+     * The capsfilter behind the scaler. Changing its caps makes the scaler renegotiate, which the caps of the appsink
+     * would not do once the stream is running.
+     */
+    private Element scaleCaps;
+
+    private volatile int displayWidth;
+    private volatile int displayHeight;
+
+    /**
+     * Scales the video down to fit the given size before it is converted for display, keeping its aspect ratio. The
+     * video is never scaled up. A size of 0 or less shows the video at full resolution.
+     */
+    public void setDisplaySize(int width, int height) {
+        displayWidth = width;
+        displayHeight = height;
+        if (scaleCaps != null) {
+            videoMonitor.execute(this::applyDisplaySize);
+        }
+    }
+
+    private void applyDisplaySize() {
+        int width = displayWidth;
+        int height = displayHeight;
+        int sourceWidth = sourceSize.width;
+        int sourceHeight = sourceSize.height;
+        if (width <= 0 || height <= 0 || sourceWidth <= 0 || sourceHeight <= 0) {
+            // Until the stream size is known there is nothing to fit
+            scaleCaps.setCaps(Caps.fromString(SCALE_CAPS));
+            return;
+        }
+        double scale = Math.min(1, Math.min((double) width / sourceWidth, (double) height / sourceHeight));
+        // Most raw formats need even dimensions
+        int scaledWidth = Math.max(2, (int) (sourceWidth * scale) & ~1);
+        int scaledHeight = Math.max(2, (int) (sourceHeight * scale) & ~1);
+        if (scaledWidth >= sourceWidth && scaledHeight >= sourceHeight) {
+            scaleCaps.setCaps(Caps.fromString(SCALE_CAPS));
+        } else {
+            scaleCaps.setCaps(Caps.fromString(SCALE_CAPS + ",width=" + scaledWidth + ",height=" + scaledHeight));
+        }
+    }
+
+    private LongProperty convertedByteRate = new SimpleLongProperty();
+
+    private long lastConvertedBytes = 0;
+
+    /**
+     * @return the bytes of converted frames handed to the display in the last second
+     */
+    public ReadOnlyLongProperty convertedByteRateProperty() {
+        return convertedByteRate;
+    }
+
+    private final KeyframeGate keyframeGate = new KeyframeGate();
+    private final DecodeTimer  decodeTimer  = new DecodeTimer();
+
+    private void attachProbes(Element element) {
+        ElementFactory factory = element.getFactory();
+        if (factory == null) {
+            return;
+        }
+        String klass = factory.getKlass();
+        if (klass.contains("Parser")) {
+            element.getStaticPad("src").addDataProbe(keyframeGate);
+        } else if (klass.contains("Decoder") && klass.contains("Video")) {
+            element.getStaticPad("sink").addDataProbe(decodeTimer.input);
+            element.getStaticPad("src").addDataProbe(decodeTimer.output);
+        }
+    }
+
+    /**
+     * @return Percentiles of the time frames spent in the decoder over the last 10 seconds, which includes waiting for
+     * a free thread and, with frame threading, for the frames decoded alongside
+     */
+    public LatencyHistogram.Snapshot getDecodeTimeStatistics() {
+        return decodeTimer.decodeTimes.snapshot();
+    }
+
+    private LongProperty decodedFrameRate = new SimpleLongProperty();
+
+    private long lastDecodedFrames = 0;
+
+    /**
+     * @return the number of frames the decoder output in the last second
+     */
+    public ReadOnlyLongProperty decodedFrameRateProperty() {
+        return decodedFrameRate;
+    }
+
+    /**
+     * @return The number of frames skipped while waiting for a keyframe after video was dropped
+     */
+    public long getSkippedFrameCount() {
+        return keyframeGate.skipped.get();
+    }
+
+    private LongProperty pipelineLatency = new SimpleLongProperty();
+    private LongProperty bufferedTime    = new SimpleLongProperty();
+
+    /**
+     * @return the latency the pipeline reports for a live source in nanoseconds, updated every second
+     */
+    public ReadOnlyLongProperty pipelineLatencyProperty() {
+        return pipelineLatency;
+    }
+
+    /**
+     * @return how much video in nanoseconds is waiting in front of the decoder, updated every second
+     */
+    public ReadOnlyLongProperty bufferedTimeProperty() {
+        return bufferedTime;
     }
 
     private LongProperty bitrate = new SimpleLongProperty();
@@ -133,6 +691,11 @@ public class VideoClient extends SimpleNetworkClient {
     private long lastByteCount = 0;
     private long byteCount     = 0;
 
+    private LongProperty ingestTime = new SimpleLongProperty();
+
+    private long       lastIngestNanos = 0;
+    private AtomicLong ingestNanos     = new AtomicLong();
+
     /**
      * @return the bitrate in bits/second
      */
@@ -140,26 +703,350 @@ public class VideoClient extends SimpleNetworkClient {
         return bitrate;
     }
 
+    /**
+     * The time spent moving received bytes into the pipeline, used to compare the cost of each {@link IngestMode}
+     * at the same bitrate.
+     *
+     * @return the ingest time in nanoseconds/second
+     */
+    public ReadOnlyLongProperty ingestTimeProperty() {
+        return ingestTime;
+    }
+
+    private static final long FLUSH_CHECK_MILLIS = 100;
+
+    /**
+     * Set from the moment the previous stream is discarded until the pipeline has been flushed. The appsrc callbacks
+     * hand the streaming thread back instead of reading while it is set.
+     */
+    private volatile boolean flushing;
+
+    /**
+     * Held by the {@link VideoReceiver} while it adds bytes, so a discard never splits a read between two streams
+     */
+    private final Object ingestLock = new Object();
+
+    private volatile long resyncStart;
+
+    private LongProperty resyncTime = new SimpleLongProperty(-1);
+
+    /**
+     * @return the time in nanoseconds from the last reconnect until the first frame decoded from a keyframe reached
+     * the display, -1 until there was a reconnect
+     */
+    public ReadOnlyLongProperty resyncTimeProperty() {
+        return resyncTime;
+    }
+
+    /**
+     * Drops the bytes of the previous stream that have not reached the pipeline yet, and holds the pipeline back
+     * until {@link #flushVideo()} has run. Called on the thread that learns the stream ended, before any byte of the
+     * next stream can be received, so only the previous stream's bytes are dropped.
+     */
+    private void discardStream() {
+        if (pipeline == null || ringBuffer.isClosed()) {
+            return;
+        }
+        synchronized (ingestLock) {
+            flushing = true;
+            keyframeGate.waiting = true;
+            ringBuffer.discardWritten();
+            incomingBytes.clear();
+        }
+    }
+
+    /**
+     * Throws away everything in the pipeline after the stream ended. The pipeline stays in PLAYING, so nothing has to
+     * be rebuilt when the connection comes back.
+     */
+    private void flushVideo() {
+        if (pipeline == null || ringBuffer.isClosed()) {
+            return;
+        }
+        resyncStart = 0;
+        // The appsrc callback returns within FLUSH_CHECK_MILLIS, freeing the streaming thread for the flush
+        flushing = true;
+        try {
+            src.sendEvent(new FlushStartEvent());
+            src.sendEvent(new FlushStopEvent());
+        } finally {
+            flushing = false;
+        }
+        if (ingestMode == IngestMode.PUSH) {
+            // Bytes of the next stream may have been held back during the flush
+            resumeReading();
+        }
+        logger.offerStatus("Flushed video pipeline", StatusHandler.DEBUG);
+    }
+
+    /**
+     * Starts decoding the new connection's stream, dropping frames until its first keyframe
+     */
+    private void resyncVideo() {
+        if (pipeline == null || ringBuffer.isClosed()) {
+            return;
+        }
+        keyframeGate.waiting = true;
+        resyncStart = System.nanoTime();
+        pipeline.play();
+    }
+
     public void stopVideo() {
+        if (startup != null) {
+            // Let a start that is still running finish, so there is a pipeline to close
+            startup.handle((result, cause) -> null).join();
+        }
         if (pipeline == null) {
             logger.offerStatus("Pipeline is null, returning", StatusHandler.DEBUG);
             return;
         }
 //        pipeline.stop();
+        closeSource();
         System.out.println("Closing pipeline");
         pipeline.close();
     }
 
-    private class VideoReceiver extends ChannelInboundHandlerAdapter {
+    /**
+     * Stops feeding the appsrc for good, waking up the streaming thread if it is waiting for data so the pipeline can
+     * shut down
+     */
+    void closeSource() {
+        flushing = true;
+        ringBuffer.close();
+    }
+
+    /**
+     * Sits behind the stream parser and drops everything from a discontinuity or a reconnect until the next keyframe,
+     * as frames decoded from a missing reference only show up as grey smears
+     */
+    private static class KeyframeGate implements Pad.DATA_PROBE {
+
+        private final AtomicLong skipped = new AtomicLong();
+
+        private volatile boolean waiting;
+
+        @Override
+        public PadProbeReturn dataReceived(Pad pad, Buffer buffer) {
+            EnumSet<BufferFlags> flags = buffer.getFlags();
+            if (flags.contains(BufferFlags.DISCONT)) {
+                waiting = true;
+            }
+            if (waiting) {
+                if (flags.contains(BufferFlags.DELTA_UNIT)) {
+                    skipped.incrementAndGet();
+                    return PadProbeReturn.DROP;
+                }
+                waiting = false;
+            }
+            return PadProbeReturn.OK;
+        }
+    }
+
+    /**
+     * Follows the frame size on a pad and counts the bytes of the frames passing it, assuming 4 bytes per pixel. The
+     * size is read from the pad with the first buffer after a caps event, as the caps are only set after the probe.
+     */
+    private static class FrameSize implements Pad.EVENT_PROBE, Pad.DATA_PROBE {
+
+        private final String     name;
+        private final Runnable   onChange;
+        private final AtomicLong bytes = new AtomicLong();
+
+        private volatile boolean changed;
+        private volatile int     width;
+        private volatile int     height;
+
+        private FrameSize(String name, Runnable onChange) {
+            this.name = name;
+            this.onChange = onChange;
+        }
+
+        @Override
+        public PadProbeReturn eventReceived(Pad pad, Event event) {
+            if (event instanceof CapsEvent) {
+                changed = true;
+            }
+            return PadProbeReturn.OK;
+        }
+
+        @Override
+        public PadProbeReturn dataReceived(Pad pad, Buffer buffer) {
+            if (changed) {
+                changed = false;
+                Caps caps = pad.getCurrentCaps();
+                if (caps != null && caps.size() > 0) {
+                    Structure structure = caps.getStructure(0);
+                    width = structure.getInteger("width");
+                    height = structure.getInteger("height");
+                    StatusHandler.getInstance().offerStatus(name + " frame size negotiated to " + width + "x" + height, StatusHandler.DEBUG);
+                }
+                if (onChange != null) {
+                    onChange.run();
+                }
+            }
+            bytes.addAndGet(4L * width * height);
+            return PadProbeReturn.OK;
+        }
+    }
+
+    /**
+     * Times frames through the decoder by matching the presentation timestamp of each decoded frame to the time its
+     * encoded frame went in. Frames without a timestamp are matched in order.
+     */
+    private static class DecodeTimer {
+
+        private static final int MAX_PENDING = 64;
+
+        private final LatencyHistogram decodeTimes = new LatencyHistogram(10, TimeUnit.SECONDS, 10);
+        private final AtomicLong       frames      = new AtomicLong();
+
+        // Pairs of presentation timestamp and entry time, oldest first
+        private final ArrayDeque<long[]> pending = new ArrayDeque<>();
+
+        private final Pad.DATA_PROBE input = (pad, buffer) -> {
+            synchronized (pending) {
+                if (pending.size() == MAX_PENDING) {
+                    pending.removeFirst();
+                }
+                pending.addLast(new long[]{buffer.getPresentationTimestamp(), System.nanoTime()});
+            }
+            return PadProbeReturn.OK;
+        };
+
+        private final Pad.DATA_PROBE output = (pad, buffer) -> {
+            long pts = buffer.getPresentationTimestamp();
+            long entered = -1;
+            synchronized (pending) {
+                Iterator<long[]> it = pending.iterator();
+                while (it.hasNext()) {
+                    long[] entry = it.next();
+                    if (!ClockTime.isValid(pts) || entry[0] == pts) {
+                        entered = entry[1];
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+            if (entered >= 0) {
+                decodeTimes.record(System.nanoTime() - entered);
+            }
+            frames.incrementAndGet();
+            return PadProbeReturn.OK;
+        };
+    }
+
+    /**
+     * Pushes the readable bytes of the buffer into the appsrc in one bulk copy straight into native GStreamer memory.
+     * The appsrc takes ownership of the GStreamer buffer once it is pushed.
+     */
+    private static void push(AppSrc appSrc, ByteBuf buf) {
+        Buffer gstBuf = new Buffer(buf.readableBytes());
+        buf.readBytes(gstBuf.map(true));
+        gstBuf.unmap();
+        appSrc.pushBuffer(gstBuf);
+    }
+
+    class VideoReceiver extends ChannelInboundHandlerAdapter {
+
+        /**
+         * Bytes of this connection that did not fit into the ring when it filled up, or that arrived during a flush in
+         * PUSH mode. Only accessed on its event loop.
+         */
+        private ByteBuf pendingBytes;
+
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
             ByteBuf buf = (ByteBuf) msg;
-            while (buf.readableBytes() > 0) {
-                byteCount++;
-                incomingBytes.offer(buf.readByte());
+            long start = System.nanoTime();
+            if (ingestMode == IngestMode.PUSH) {
+                int length = buf.readableBytes();
+                byteCount += length;
+                AppSrc appSrc = src;
+                if (appSrc == null) {
+                    // No pipeline to feed yet, drop the data rather than holding onto it
+                    buf.skipBytes(length);
+                } else if (length > 0) {
+                    synchronized (ingestLock) {
+                        if (pendingBytes == null && !flushing) {
+                            push(appSrc, buf);
+                        }
+                    }
+                    if (buf.isReadable()) {
+                        // A buffer pushed during a flush would be dropped, hold onto it until the flush is done
+                        ByteBuf rest = buf.readRetainedSlice(buf.readableBytes());
+                        pendingBytes = pendingBytes == null ? rest : Unpooled.wrappedBuffer(pendingBytes, rest);
+                        ctx.channel().config().setAutoRead(false);
+                    }
+                }
+            } else if (ingestMode == IngestMode.RING) {
+                byteCount += buf.readableBytes();
+                if (pendingBytes == null) {
+                    synchronized (ingestLock) {
+                        ringBuffer.write(buf);
+                    }
+                }
+                if (buf.isReadable()) {
+                    // The ring is full, hold onto the rest until the decoder catches up. Reading is normally already
+                    // paused by the high watermark, this only catches reads that were in flight.
+                    ByteBuf rest = buf.readRetainedSlice(buf.readableBytes());
+                    pendingBytes = pendingBytes == null ? rest : Unpooled.wrappedBuffer(pendingBytes, rest);
+                    ctx.channel().config().setAutoRead(false);
+                }
+            } else {
+                synchronized (ingestLock) {
+                    while (buf.readableBytes() > 0) {
+                        byteCount++;
+                        incomingBytes.offer(buf.readByte());
+                    }
+                }
             }
+            ingestNanos.addAndGet(System.nanoTime() - start);
 
             super.channelRead(ctx, msg);
         }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof ConnectionReplacedEvent) {
+                releasePending();
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            releasePending();
+            super.channelInactive(ctx);
+        }
+
+        /**
+         * Moves any bytes that were held back into the ring, or pushes them once the flush is done, and starts reading
+         * from the server again if they all went through.
+         */
+        private void resumeReading(Channel ch) {
+            if (pendingBytes != null) {
+                synchronized (ingestLock) {
+                    if (ingestMode != IngestMode.PUSH) {
+                        ringBuffer.write(pendingBytes);
+                    } else if (!flushing) {
+                        push(src, pendingBytes);
+                    }
+                }
+                if (pendingBytes.isReadable()) {
+                    // Still full or flushing, the next low watermark or the end of the flush will try again
+                    return;
+                }
+                pendingBytes.release();
+                pendingBytes = null;
+            }
+            ch.config().setAutoRead(true);
+        }
+
+        private void releasePending() {
+            if (pendingBytes != null) {
+                pendingBytes.release();
+                pendingBytes = null;
+            }
+        }
     }
 }
@@ -0,0 +1,107 @@
+package ml.dent.video;
+
+/**
+ * How long each phase of getting the video up took, from the call to start the video until the first frame was shown.
+ * Phases that have not happened yet are reported as -1.
+ */
+public class VideoStartupTimings {
+
+    private final long start;
+
+    private volatile long initialized;
+    private volatile long registryLoaded;
+    private volatile long pipelineBuilt;
+    private volatile long prerolled;
+    private volatile long windowShown;
+    private volatile long firstFrame;
+
+    VideoStartupTimings() {
+        this.start = System.nanoTime();
+    }
+
+    void markInitialized() {
+        initialized = System.nanoTime();
+    }
+
+    void markRegistryLoaded() {
+        registryLoaded = System.nanoTime();
+    }
+
+    void markPipelineBuilt() {
+        pipelineBuilt = System.nanoTime();
+    }
+
+    void markPrerolled() {
+        prerolled = System.nanoTime();
+    }
+
+    /**
+     * Marks the moment the main window was shown, only the first call counts
+     */
+    public void markWindowShown() {
+        if (windowShown == 0) {
+            windowShown = System.nanoTime();
+        }
+    }
+
+    void markFirstFrame() {
+        if (firstFrame == 0) {
+            firstFrame = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return Milliseconds from the start until GStreamer was initialized
+     */
+    public double getInitTime() {
+        return between(start, initialized);
+    }
+
+    /**
+     * @return Milliseconds from initialization until every element the pipeline needs was found in the registry
+     */
+    public double getRegistryTime() {
+        return between(initialized, registryLoaded);
+    }
+
+    /**
+     * @return Milliseconds from the registry lookups until the pipeline was built
+     */
+    public double getBuildTime() {
+        return between(registryLoaded, pipelineBuilt);
+    }
+
+    /**
+     * @return Milliseconds from building the pipeline until it reached PAUSED
+     */
+    public double getPrerollTime() {
+        return between(pipelineBuilt, prerolled);
+    }
+
+    /**
+     * @return Milliseconds from the start until the main window was shown
+     */
+    public double getTimeToWindow() {
+        return between(start, windowShown);
+    }
+
+    /**
+     * @return Milliseconds from the start until the first frame was shown
+     */
+    public double getTimeToFirstFrame() {
+        return between(start, firstFrame);
+    }
+
+    private static double between(long from, long to) {
+        if (from == 0 || to == 0) {
+            return -1;
+        }
+        return (to - from) / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("init %.1fms, registry %.1fms, build %.1fms, preroll %.1fms, window %.1fms, first frame %.1fms",
+                getInitTime(), getRegistryTime(), getBuildTime(), getPrerollTime(), getTimeToWindow(), getTimeToFirstFrame());
+    }
+}
@@ -0,0 +1,189 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import ml.dent.net.BounceServerGreetingDecoder.Event;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BounceServerGreetingDecoderTest {
+
+    /**
+     * Feeds every read to the decoder until it has consumed it, the way the handshake handler does
+     *
+     * @return The events other than NONE, in order
+     */
+    private static List<Event> decode(BounceServerGreetingDecoder decoder, String... reads) {
+        List<Event> events = new ArrayList<>();
+        for (String read : reads) {
+            ByteBuf buf = Unpooled.copiedBuffer(read, CharsetUtil.US_ASCII);
+            try {
+                while (buf.isReadable()) {
+                    Event event = decoder.decode(buf);
+                    if (event == Event.NONE) {
+                        break;
+                    }
+                    events.add(event);
+                }
+            } finally {
+                buf.release();
+            }
+        }
+        return events;
+    }
+
+    private static String[] bytes(String s) {
+        String[] reads = new String[s.length()];
+        for (int i = 0; i < s.length(); i++) {
+            reads[i] = s.substring(i, i + 1);
+        }
+        return reads;
+    }
+
+    private static List<Event> events(Event... events) {
+        List<Event> list = new ArrayList<>();
+        for (Event event : events) {
+            list.add(event);
+        }
+        return list;
+    }
+
+    @Test
+    public void versionAndReadyInOneRead() {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        assertEquals(events(Event.VERSION, Event.READY), decode(decoder, "2-v1.2\nREADY\n"));
+        assertEquals(2, decoder.channelBytes());
+    }
+
+    @Test
+    public void versionAndReadyByteByByte() {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        assertEquals(events(Event.VERSION, Event.READY), decode(decoder, bytes("12-v1.2\nREADY\n")));
+        assertEquals(12, decoder.channelBytes());
+    }
+
+    @Test
+    public void crlfLineEndings() {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        assertEquals(events(Event.VERSION, Event.READY), decode(decoder, "2-v1.2\r\nREADY\r\n"));
+    }
+
+    @Test
+    public void crlfLineEndingsByteByByte() {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        assertEquals(events(Event.VERSION, Event.READY), decode(decoder, bytes("2-v1.2\r\nREADY\r\n")));
+    }
+
+    @Test
+    public void versionSplitAcrossReads() {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        assertEquals(events(), decode(decoder, "1-v1."));
+        assertTrue(decoder.isInVersion());
+        assertEquals(events(Event.VERSION), decode(decoder, "2\n"));
+        assertFalse(decoder.isInVersion());
+        assertEquals(events(Event.READY), decode(decoder, "READY\n"));
+        assertEquals(1, decoder.channelBytes());
+    }
+
+    @Test
+    public void readyEndsVersionWithoutLineEnding() {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        assertEquals(events(), decode(decoder, "1-v1.2"));
+        assertEquals(events(Event.VERSION, Event.READY), decode(decoder, "READY\n"));
+    }
+
+    @Test
+    public void versionWaitsForLineEnding() {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        assertEquals(events(), decode(decoder, "1-v1.2"));
+        assertTrue(decoder.isInVersion());
+        assertEquals(events(), decode(decoder, ".3"));
+        assertTrue(decoder.isInVersion());
+        assertEquals(events(Event.VERSION, Event.READY), decode(decoder, "\nREADY\n"));
+    }
+
+    @Test
+    public void readyWaitsForLineEnding() {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        assertEquals(events(Event.VERSION), decode(decoder, "1-v1\nREADY"));
+        assertTrue(decoder.isReadyPending());
+        assertEquals(events(Event.READY), decode(decoder, "\r\n"));
+    }
+
+    @Test
+    public void readySplitAcrossReads() {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        assertEquals(events(Event.VERSION), decode(decoder, "1-v1\nREAD"));
+        assertFalse(decoder.isReadyPending());
+        assertEquals(events(), decode(decoder, "Y"));
+        assertTrue(decoder.isReadyPending());
+        assertEquals(events(Event.READY), decode(decoder, "\n"));
+    }
+
+    @Test
+    public void longerStatusSplitBehindReady() {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        assertEquals(events(Event.VERSION), decode(decoder, "1-v1\nREADY"));
+        assertEquals(events(Event.REJECTED), decode(decoder, "X\n"));
+        assertEquals("READYX", decoder.statusText());
+    }
+
+    @Test
+    public void longerStatusIsNotReady() {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        assertEquals(events(Event.VERSION, Event.REJECTED), decode(decoder, "1-v1\nREADYX\n"));
+        assertEquals("READYX", decoder.statusText());
+    }
+
+    @Test
+    public void longerStatusIsNotReadyByteByByte() {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        assertEquals(events(Event.VERSION, Event.REJECTED), decode(decoder, bytes("1-v1\nREADYX\n")));
+        assertEquals("READYX", decoder.statusText());
+    }
+
+    @Test
+    public void rejection() {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        assertEquals(events(Event.VERSION, Event.REJECTED), decode(decoder, "1-v1\nChannel in use\n"));
+        assertEquals("Channel in use", decoder.statusText());
+    }
+
+    @Test
+    public void malformedVersion() {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        assertEquals(events(Event.MALFORMED), decode(decoder, "HTTP/1.1 400 Bad Request\n"));
+    }
+
+    @Test
+    public void leavesBytesAfterReady() {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        ByteBuf buf = Unpooled.copiedBuffer("1-v1\nREADY\r\npayload", CharsetUtil.US_ASCII);
+        try {
+            assertEquals(Event.VERSION, decoder.decode(buf));
+            assertEquals(Event.READY, decoder.decode(buf));
+            assertEquals("payload", buf.toString(CharsetUtil.US_ASCII));
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    public void writeChannelId() {
+        ByteBuf buf = Unpooled.buffer();
+        try {
+            BounceServerGreetingDecoder.writeChannelId(buf, 0xa, 2);
+            assertEquals("0a", buf.toString(CharsetUtil.US_ASCII));
+            buf.clear();
+            BounceServerGreetingDecoder.writeChannelId(buf, 0x1ff, 2);
+            assertEquals("1ff", buf.toString(CharsetUtil.US_ASCII));
+        } finally {
+            buf.release();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import ml.dent.util.Markers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CommandEncoderTest {
+
+    private static final int WARM_UP  = 1000;
+    private static final int COMMANDS = 10000;
+
+    private CommandEncoder  encoder;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() {
+        encoder = new CommandEncoder();
+        channel = new EmbeddedChannel();
+        channel.config().setAllocator(BufferPool.allocator());
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    /**
+     * Writes a mix of fixed commands and commands with an argument, one write and flush per command like the
+     * controller does, and checks every command went out as a single frame
+     */
+    private void sendCommands(int count) {
+        for (int i = 0; i < count; i++) {
+            channel.writeAndFlush(encoder.encode(Markers.STOP));
+            channel.writeAndFlush(encoder.encode(channel.alloc(), Markers.JOG, (byte) (i & 1)));
+            channel.writeAndFlush(encoder.encode(Markers.PING_REQUEST));
+            channel.writeAndFlush(encoder.encode(channel.alloc(), Markers.SPEED, (byte) 50));
+            channel.writeAndFlush(encoder.encode(Markers.PING_RESPONSE));
+
+            assertFrame(Markers.STOP);
+            assertFrame(Markers.JOG, (byte) (i & 1));
+            assertFrame(Markers.PING_REQUEST);
+            assertFrame(Markers.SPEED, (byte) 50);
+            assertFrame(Markers.PING_RESPONSE);
+        }
+        assertNull(channel.readOutbound());
+    }
+
+    private void assertFrame(byte... expected) {
+        ByteBuf frame = channel.readOutbound();
+        try {
+            assertEquals(expected.length, frame.readableBytes());
+            for (byte b : expected) {
+                assertEquals(b, frame.readByte());
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void allocationsStayFlatAfterWarmUp() {
+        sendCommands(WARM_UP);
+        long encoded = encoder.getEncodedCount();
+        long allocations = encoder.getAllocationCount();
+        long usedDirectMemory = BufferPool.getUsedDirectMemory();
+
+        sendCommands(COMMANDS);
+
+        assertEquals(encoded + 5L * COMMANDS, encoder.getEncodedCount());
+        // Only the two commands with an argument allocate, one buffer each
+        assertEquals(allocations + 2L * COMMANDS, encoder.getAllocationCount());
+        // Every frame was released, so the pool serves them from what it already had
+        assertEquals(usedDirectMemory, BufferPool.getUsedDirectMemory());
+    }
+
+    @Test
+    public void fixedFramesAreIndependent() {
+        ByteBuf first = encoder.encode(Markers.STOP);
+        ByteBuf second = encoder.encode(Markers.STOP);
+        first.readByte();
+        assertEquals(1, second.readableBytes());
+        assertTrue(first.isReadOnly());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void commandWithArgumentHasNoFixedFrame() {
+        encoder.encode(Markers.JOG);
+    }
+}
@@ -0,0 +1,161 @@
+package ml.dent.net;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends commands through a connected client's whole outbound pipeline to a local server, counting every buffer its
+ * channel allocates on the way
+ */
+public class ControllerNetworkClientTest {
+
+    private static final int WARM_UP  = 256;
+    private static final int COMMANDS = 4096;
+
+    // Small enough that the writes never reach the client's write buffer high watermark
+    private static final int BATCH = 64;
+
+    /**
+     * Counts every buffer allocated, however it is asked for
+     */
+    private static class CountingAllocator extends PooledByteBufAllocator {
+
+        private final AtomicLong allocations = new AtomicLong();
+
+        private CountingAllocator() {
+            super(true);
+        }
+
+        @Override
+        protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity) {
+            allocations.incrementAndGet();
+            return super.newHeapBuffer(initialCapacity, maxCapacity);
+        }
+
+        @Override
+        protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+            allocations.incrementAndGet();
+            return super.newDirectBuffer(initialCapacity, maxCapacity);
+        }
+
+        @Override
+        public CompositeByteBuf compositeHeapBuffer(int maxNumComponents) {
+            allocations.incrementAndGet();
+            return super.compositeHeapBuffer(maxNumComponents);
+        }
+
+        @Override
+        public CompositeByteBuf compositeDirectBuffer(int maxNumComponents) {
+            allocations.incrementAndGet();
+            return super.compositeDirectBuffer(maxNumComponents);
+        }
+    }
+
+    private EventLoopGroup serverGroup;
+    private Channel        server;
+
+    private final AtomicLong received = new AtomicLong();
+
+    private final CountingAllocator  allocator = new CountingAllocator();
+    private EventLoopProvider        provider;
+    private ControllerNetworkClient  client;
+
+    @Before
+    public void setUp() throws Exception {
+        serverGroup = new NioEventLoopGroup(1);
+        server = new ServerBootstrap().group(serverGroup).channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                        received.addAndGet(((ByteBuf) msg).readableBytes());
+                        ReferenceCountUtil.release(msg);
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+        int port = ((InetSocketAddress) server.localAddress()).getPort();
+
+        provider = new EventLoopProvider("controller-test", 1);
+        client = new ControllerNetworkClient("127.0.0.1", port, provider, Runnable::run);
+        client.setBounceServerProtocol(false);
+        // Keep the keepalive out of the counts
+        client.setKeepalive(1, 2, TimeUnit.HOURS);
+        client.setAllocator(allocator);
+        assertTrue(client.connect().await(5, TimeUnit.SECONDS));
+        assertTrue(client.isConnectionActive());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.disconnect().await(1, TimeUnit.SECONDS);
+        server.close().await(1, TimeUnit.SECONDS);
+        serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).await(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Waits until the server has received the given number of bytes in total
+     */
+    private void awaitReceived(long bytes) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (received.get() < bytes) {
+            assertTrue("Server received " + received.get() + " of " + bytes + " bytes", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Runs the command the given number of times in batches, waiting for each batch to reach the server
+     *
+     * @return The number of buffers allocated while doing so
+     */
+    private long send(int count, int frameLength, Runnable command) throws InterruptedException {
+        long before = allocator.allocations.get();
+        for (int sent = 0; sent < count; sent += BATCH) {
+            long expected = received.get() + (long) BATCH * frameLength;
+            for (int i = 0; i < BATCH; i++) {
+                command.run();
+            }
+            awaitReceived(expected);
+        }
+        return allocator.allocations.get() - before;
+    }
+
+    @Test
+    public void fixedCommandsNeverAllocate() throws Exception {
+        // The probe sent on connecting
+        awaitReceived(1);
+        send(WARM_UP, 1, client::stopMill);
+        long encoded = client.getCommandEncoder().getEncodedCount();
+
+        assertEquals(0, send(COMMANDS, 1, client::stopMill));
+        assertEquals(encoded + COMMANDS, client.getCommandEncoder().getEncodedCount());
+        assertEquals(0, client.getCommandEncoder().getAllocationCount());
+    }
+
+    @Test
+    public void commandsWithArgumentAllocateOnce() throws Exception {
+        awaitReceived(1);
+        send(WARM_UP, 2, () -> client.setSpeed(50));
+        long allocations = client.getCommandEncoder().getAllocationCount();
+
+        assertEquals(COMMANDS, send(COMMANDS, 2, () -> client.setSpeed(50)));
+        assertEquals(allocations + COMMANDS, client.getCommandEncoder().getAllocationCount());
+    }
+}
@@ -0,0 +1,114 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import ml.dent.net.BounceServerGreetingDecoder.Event;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures both handshake decoders on replies that arrive in a single read and on replies split into one read per
+ * byte. Only reports the numbers, they depend on the machine.
+ */
+public class HandshakeDecoderThroughputTest {
+
+    private static final String GREETING = "2-v1.2.3\r\nREADY\r\n";
+    private static final String RESPONSE = "HTTP/1.1 200 Connection established\r\nProxy-Agent: squid/4.10\r\n"
+            + "Connection: keep-alive\r\n\r\n";
+
+    private static final int WARM_UP    = 20000;
+    private static final int HANDSHAKES = 200000;
+
+    private interface Decode {
+        /**
+         * Decodes one whole reply from the reads, starting from a new decoder
+         */
+        void run(ByteBuf[] reads);
+    }
+
+    private static ByteBuf[] coalesced(String reply) {
+        return new ByteBuf[]{Unpooled.copiedBuffer(reply, CharsetUtil.US_ASCII)};
+    }
+
+    private static ByteBuf[] fragmented(String reply) {
+        ByteBuf[] reads = new ByteBuf[reply.length()];
+        for (int i = 0; i < reads.length; i++) {
+            reads[i] = Unpooled.copiedBuffer(reply.substring(i, i + 1), CharsetUtil.US_ASCII);
+        }
+        return reads;
+    }
+
+    private static void rewind(ByteBuf[] reads) {
+        for (ByteBuf read : reads) {
+            read.readerIndex(0);
+        }
+    }
+
+    private static void release(ByteBuf[] reads) {
+        for (ByteBuf read : reads) {
+            read.release();
+        }
+    }
+
+    private static void greeting(ByteBuf[] reads) {
+        BounceServerGreetingDecoder decoder = new BounceServerGreetingDecoder();
+        boolean ready = false;
+        for (ByteBuf read : reads) {
+            Event event;
+            while (read.isReadable() && (event = decoder.decode(read)) != Event.NONE) {
+                if (event == Event.READY) {
+                    ready = true;
+                } else if (event != Event.VERSION) {
+                    fail("Unexpected " + event);
+                }
+            }
+        }
+        assertTrue(ready);
+        assertEquals(2, decoder.channelBytes());
+    }
+
+    private static void response(ByteBuf[] reads) {
+        ProxyResponseDecoder decoder = new ProxyResponseDecoder();
+        boolean done = false;
+        for (ByteBuf read : reads) {
+            if (decoder.decode(read)) {
+                done = true;
+                break;
+            }
+        }
+        assertTrue(done);
+        assertTrue(decoder.isEstablished());
+    }
+
+    private static void measure(String name, ByteBuf[] reads, Decode decode) {
+        try {
+            for (int i = 0; i < WARM_UP; i++) {
+                rewind(reads);
+                decode.run(reads);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < HANDSHAKES; i++) {
+                rewind(reads);
+                decode.run(reads);
+            }
+            double nanos = (double) (System.nanoTime() - start) / HANDSHAKES;
+            System.out.printf("%s, %d reads: %.0f ns per reply%n", name, reads.length, nanos);
+        } finally {
+            release(reads);
+        }
+    }
+
+    @Test
+    public void greetingThroughput() {
+        measure("Greeting coalesced", coalesced(GREETING), HandshakeDecoderThroughputTest::greeting);
+        measure("Greeting fragmented", fragmented(GREETING), HandshakeDecoderThroughputTest::greeting);
+    }
+
+    @Test
+    public void proxyResponseThroughput() {
+        measure("Proxy response coalesced", coalesced(RESPONSE), HandshakeDecoderThroughputTest::response);
+        measure("Proxy response fragmented", fragmented(RESPONSE), HandshakeDecoderThroughputTest::response);
+    }
+}
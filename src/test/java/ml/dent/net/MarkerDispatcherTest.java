@@ -0,0 +1,167 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import ml.dent.util.Markers;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.Assert.*;
+
+public class MarkerDispatcherTest {
+
+    // A telemetry burst, read from the socket in typical sized reads with a ping every so often
+    private static final int READ_SIZE     = 2048;
+    private static final int PING_INTERVAL = 512;
+
+    private static final int WARM_UP_BYTES = 4 << 20;
+    private static final int BYTES         = 32 << 20;
+
+    private final AtomicLongArray unknownCounts = new AtomicLongArray(256);
+
+    private static ByteBuf telemetryRead() {
+        ByteBuf buf = BufferPool.allocator().directBuffer(READ_SIZE);
+        for (int i = 0; i < READ_SIZE; i++) {
+            if (i % PING_INTERVAL == 0) {
+                buf.writeByte(i % (2 * PING_INTERVAL) == 0 ? Markers.PING_REQUEST : Markers.PING_RESPONSE);
+            } else {
+                buf.writeByte(i & 0x3f);
+            }
+        }
+        return buf;
+    }
+
+    private long unknownTotal(MarkerDispatcher dispatcher) {
+        dispatcher.publishUnknownCounts(unknownCounts);
+        return unknownTotal(unknownCounts);
+    }
+
+    private static long unknownTotal(AtomicLongArray counts) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    @Test
+    public void dispatchesMarkersInOrder() {
+        List<Byte> seen = new ArrayList<>();
+        MarkerDispatcher dispatcher = new MarkerDispatcher()
+                .on(Markers.PING_REQUEST, (ctx, marker) -> seen.add(marker))
+                .on(Markers.PING_RESPONSE, (ctx, marker) -> seen.add(marker));
+        ByteBuf buf = Unpooled.wrappedBuffer(new byte[]{Markers.PING_RESPONSE, 1, Markers.PING_REQUEST, 1, 2});
+        try {
+            dispatcher.dispatch(null, buf);
+            assertEquals(0, buf.readerIndex());
+        } finally {
+            buf.release();
+        }
+        dispatcher.publishUnknownCounts(unknownCounts);
+        assertEquals(2, seen.size());
+        assertEquals(Markers.PING_RESPONSE, (byte) seen.get(0));
+        assertEquals(Markers.PING_REQUEST, (byte) seen.get(1));
+        assertEquals(2, unknownCounts.get(1));
+        assertEquals(1, unknownCounts.get(2));
+        assertEquals(3, unknownTotal(unknownCounts));
+    }
+
+    @Test
+    public void countsUnsignedByteValues() {
+        MarkerDispatcher dispatcher = new MarkerDispatcher();
+        ByteBuf buf = Unpooled.wrappedBuffer(new byte[]{(byte) 0xff, (byte) 0x80});
+        try {
+            dispatcher.dispatch(null, buf);
+        } finally {
+            buf.release();
+        }
+        dispatcher.publishUnknownCounts(unknownCounts);
+        assertEquals(1, unknownCounts.get(0xff));
+        assertEquals(1, unknownCounts.get(0x80));
+    }
+
+    /**
+     * What the controller did before the dispatcher: copy each read into an array and build a log message for every
+     * byte that is not a marker, whether or not it gets logged
+     */
+    private static long copyAndDescribe(ByteBuf buf, long[] pings) {
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.getBytes(buf.readerIndex(), bytes);
+        long described = 0;
+        for (byte b : bytes) {
+            if (b == Markers.PING_REQUEST || b == Markers.PING_RESPONSE) {
+                pings[0]++;
+            } else {
+                described += ("Recv unknown byte: " + b).length();
+            }
+        }
+        return described;
+    }
+
+    private static double megabytesPerSecond(long nanos) {
+        return BYTES / (nanos / 1e9) / (1 << 20);
+    }
+
+    @Test
+    public void publishingStartsOver() {
+        MarkerDispatcher dispatcher = new MarkerDispatcher();
+        ByteBuf buf = Unpooled.wrappedBuffer(new byte[]{1, 1});
+        try {
+            dispatcher.dispatch(null, buf);
+            dispatcher.publishUnknownCounts(unknownCounts);
+            dispatcher.dispatch(null, buf);
+            dispatcher.publishUnknownCounts(unknownCounts);
+            dispatcher.publishUnknownCounts(unknownCounts);
+        } finally {
+            buf.release();
+        }
+        assertEquals(4, unknownCounts.get(1));
+    }
+
+    /**
+     * Reports both rates without comparing them, the numbers depend on the machine
+     */
+    @Test
+    public void telemetryBurstThroughput() throws Exception {
+        long[] pings = new long[1];
+        MarkerDispatcher dispatcher = new MarkerDispatcher()
+                .on(Markers.PING_REQUEST, (ctx, marker) -> pings[0]++)
+                .on(Markers.PING_RESPONSE, (ctx, marker) -> pings[0]++);
+        ByteBuf read = telemetryRead();
+        try {
+            long described = 0;
+            for (int i = 0; i < WARM_UP_BYTES / READ_SIZE; i++) {
+                described += copyAndDescribe(read, pings);
+                dispatcher.dispatch(null, read);
+            }
+            pings[0] = 0;
+            long unknownBefore = unknownTotal(dispatcher);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < BYTES / READ_SIZE; i++) {
+                described += copyAndDescribe(read, pings);
+            }
+            double copied = megabytesPerSecond(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < BYTES / READ_SIZE; i++) {
+                dispatcher.dispatch(null, read);
+            }
+            double dispatched = megabytesPerSecond(System.nanoTime() - start);
+
+            System.out.printf("Copy and describe: %.1f MB/s, dispatch in place: %.1f MB/s (%d bytes described)%n",
+                    copied, dispatched, described);
+
+            long readsPerRun = BYTES / READ_SIZE;
+            long pingsPerRead = READ_SIZE / PING_INTERVAL;
+            assertEquals(2 * readsPerRun * pingsPerRead, pings[0]);
+            assertEquals(readsPerRun * (READ_SIZE - pingsPerRead), unknownTotal(dispatcher) - unknownBefore);
+        } finally {
+            read.release();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ml.dent.net;
+
+import ml.dent.net.ProbeWindow.Probe;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ProbeWindowTest {
+
+    private static final long TIMEOUT = 100;
+
+    private final AtomicLong  lost      = new AtomicLong();
+    private final AtomicLong  unmatched = new AtomicLong();
+    private final ProbeWindow window    = new ProbeWindow(lost, unmatched);
+
+    private long sequence;
+
+    private Probe send(long now) {
+        Probe probe = new Probe(++sequence, new CompletableFuture<>(), TIMEOUT);
+        window.add(probe, now);
+        return probe;
+    }
+
+    private static void assertTimedOut(Probe probe) throws InterruptedException {
+        assertTrue(probe.result.isCompletedExceptionally());
+        try {
+            probe.result.get();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void matchesOldestFirst() {
+        Probe first = send(0);
+        Probe second = send(10);
+        assertSame(first, window.answer(30));
+        assertSame(second, window.answer(35));
+        assertNull(window.answer(40));
+        assertEquals(1, unmatched.get());
+        assertEquals(0, lost.get());
+    }
+
+    @Test
+    public void delayedAnswerAfterTimeoutIsNotCreditedToTheNextProbe() throws Exception {
+        Probe first = send(0);
+        window.timedOut(first, TIMEOUT);
+        assertTimedOut(first);
+        assertEquals(1, lost.get());
+
+        // A probe sent right after the loss is held back
+        assertTrue(window.quietRemaining(TIMEOUT + 1) > 0);
+
+        // The answer to the lost probe turns up late
+        assertNull(window.answer(TIMEOUT + 20));
+        assertEquals(1, unmatched.get());
+
+        assertEquals(0, window.quietRemaining(2 * TIMEOUT));
+        Probe next = send(2 * TIMEOUT);
+        Probe matched = window.answer(2 * TIMEOUT + 5);
+        assertSame(next, matched);
+        assertEquals(5, 2 * TIMEOUT + 5 - matched.sent);
+    }
+
+    @Test
+    public void lossGivesUpOnTheWholeWindow() throws Exception {
+        Probe first = send(0);
+        Probe second = send(10);
+        Probe third = send(20);
+        window.timedOut(first, TIMEOUT);
+
+        assertEquals(0, window.size());
+        assertTimedOut(first);
+        assertTimedOut(second);
+        assertTimedOut(third);
+        assertEquals(3, lost.get());
+
+        // The timeouts of the others still fire, they must not count again
+        window.timedOut(second, TIMEOUT + 10);
+        assertEquals(3, lost.get());
+
+        // The late answers to the first probe and the ones after it are all discarded
+        assertNull(window.answer(TIMEOUT + 5));
+        assertNull(window.answer(TIMEOUT + 15));
+        assertNull(window.answer(TIMEOUT + 25));
+        assertEquals(3, unmatched.get());
+    }
+
+    @Test
+    public void failAllDoesNotCountAsLost() {
+        Probe probe = send(0);
+        window.failAll(new IllegalStateException());
+        assertTrue(probe.result.isCompletedExceptionally());
+        assertEquals(0, lost.get());
+        assertEquals(0, window.quietRemaining(1));
+    }
+}
@@ -0,0 +1,109 @@
+package ml.dent.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ProxyResponseDecoderTest {
+
+    /**
+     * @return Whether the response completed within the reads
+     */
+    private static boolean decode(ProxyResponseDecoder decoder, String... reads) {
+        for (String read : reads) {
+            ByteBuf buf = Unpooled.copiedBuffer(read, CharsetUtil.US_ASCII);
+            try {
+                if (decoder.decode(buf)) {
+                    return true;
+                }
+                assertFalse(buf.isReadable());
+            } finally {
+                buf.release();
+            }
+        }
+        return false;
+    }
+
+    private static String[] bytes(String s) {
+        String[] reads = new String[s.length()];
+        for (int i = 0; i < s.length(); i++) {
+            reads[i] = s.substring(i, i + 1);
+        }
+        return reads;
+    }
+
+    @Test
+    public void established() {
+        ProxyResponseDecoder decoder = new ProxyResponseDecoder();
+        assertTrue(decode(decoder, "HTTP/1.1 200 Connection established\r\nProxy-Agent: test\r\n\r\n"));
+        assertTrue(decoder.isEstablished());
+        assertEquals(200, decoder.statusCode());
+    }
+
+    @Test
+    public void establishedByteByByte() {
+        ProxyResponseDecoder decoder = new ProxyResponseDecoder();
+        assertTrue(decode(decoder, bytes("HTTP/1.1 200 Connection established\r\nProxy-Agent: test\r\n\r\n")));
+        assertTrue(decoder.isEstablished());
+    }
+
+    @Test
+    public void loneLineFeeds() {
+        ProxyResponseDecoder decoder = new ProxyResponseDecoder();
+        assertTrue(decode(decoder, "HTTP/1.0 200 OK\nProxy-Agent: test\n\n"));
+        assertTrue(decoder.isEstablished());
+    }
+
+    @Test
+    public void splitInsideLineEnding() {
+        ProxyResponseDecoder decoder = new ProxyResponseDecoder();
+        assertFalse(decode(decoder, "HTTP/1.1 200 OK\r", "\n\r"));
+        assertFalse(decoder.isEstablished());
+        assertTrue(decode(decoder, "\n"));
+        assertTrue(decoder.isEstablished());
+    }
+
+    @Test
+    public void refused() {
+        ProxyResponseDecoder decoder = new ProxyResponseDecoder();
+        assertTrue(decode(decoder, "HTTP/1.1 407 Proxy Authentication Required\r\n\r\n"));
+        assertFalse(decoder.isEstablished());
+        assertFalse(decoder.isMalformed());
+        assertEquals(407, decoder.statusCode());
+    }
+
+    @Test
+    public void malformedStatus() {
+        ProxyResponseDecoder decoder = new ProxyResponseDecoder();
+        assertTrue(decode(decoder, "HTTP/1.1 2x0 OK\r\n\r\n"));
+        assertTrue(decoder.isMalformed());
+        assertFalse(decoder.isEstablished());
+    }
+
+    @Test
+    public void tooLong() {
+        ProxyResponseDecoder decoder = new ProxyResponseDecoder();
+        StringBuilder header = new StringBuilder("HTTP/1.1 200 OK\r\nX-Padding: ");
+        for (int i = 0; i < 9000; i++) {
+            header.append('a');
+        }
+        assertTrue(decode(decoder, header.toString()));
+        assertTrue(decoder.isMalformed());
+        assertFalse(decoder.isEstablished());
+    }
+
+    @Test
+    public void leavesBytesAfterResponse() {
+        ProxyResponseDecoder decoder = new ProxyResponseDecoder();
+        ByteBuf buf = Unpooled.copiedBuffer("HTTP/1.1 200 OK\r\n\r\n1-v1\n", CharsetUtil.US_ASCII);
+        try {
+            assertTrue(decoder.decode(buf));
+            assertEquals("1-v1\n", buf.toString(CharsetUtil.US_ASCII));
+        } finally {
+            buf.release();
+        }
+    }
+}
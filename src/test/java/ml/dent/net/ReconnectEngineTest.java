@@ -0,0 +1,178 @@
+package ml.dent.net;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ReconnectEngineTest {
+
+    private static final long INITIAL_DELAY = 50;
+    private static final long MAX_DELAY     = 200;
+    private static final long DOWNTIME      = 300;
+
+    private EventLoopGroup serverGroup;
+    private ChannelGroup   accepted;
+    private Channel        server;
+    private int            port;
+
+    // Stands in for the JavaFX thread, the engine's observable state is only updated from here
+    private ExecutorService       uiThread;
+    private AbstractNetworkClient client;
+    private ReconnectEngine       engine;
+
+    @Before
+    public void setUp() throws Exception {
+        serverGroup = new NioEventLoopGroup(1);
+        accepted = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+        startServer(0);
+        port = ((InetSocketAddress) server.localAddress()).getPort();
+
+        uiThread = Executors.newSingleThreadExecutor();
+        client = new AbstractNetworkClient("127.0.0.1", port) {
+        };
+        engine = new ReconnectEngine(client, uiThread);
+        engine.setBackoff(INITIAL_DELAY, MAX_DELAY, TimeUnit.MILLISECONDS, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.cancel();
+        ChannelFuture closed = client.closeFuture();
+        if (closed != null) {
+            closed.channel().close().await(1, TimeUnit.SECONDS);
+        }
+        accepted.close().await(1, TimeUnit.SECONDS);
+        if (server != null) {
+            server.close().await(1, TimeUnit.SECONDS);
+        }
+        serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).await(5, TimeUnit.SECONDS);
+        uiThread.shutdown();
+        uiThread.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    private void startServer(int port) throws InterruptedException {
+        server = new ServerBootstrap().group(serverGroup).channel(NioServerSocketChannel.class)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .childHandler(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+                        accepted.add(ctx.channel());
+                        super.channelActive(ctx);
+                    }
+                })
+                .bind("127.0.0.1", port).sync().channel();
+    }
+
+    /**
+     * Takes the server down along with every connection it accepted
+     */
+    private void stopServer() throws InterruptedException {
+        server.close().sync();
+        server = null;
+        accepted.close().sync();
+    }
+
+    /**
+     * Waits on the JavaFX stand-in until every update the engine posted so far has been applied
+     */
+    private void drainUiThread() throws Exception {
+        uiThread.submit(() -> {
+        }).get(1, TimeUnit.SECONDS);
+    }
+
+    private long expectedDelay(int attempt) {
+        if (attempt == 1) {
+            return 0;
+        }
+        return Math.min(INITIAL_DELAY << (attempt - 2), MAX_DELAY);
+    }
+
+    @Test
+    public void recoversAfterServerBounce() throws Exception {
+        assertTrue(client.connect().await(5, TimeUnit.SECONDS));
+        assertTrue(client.isConnectionActive());
+
+        CountDownLatch recovered = new CountDownLatch(1);
+        engine.reconnectingProperty().addListener((obs, wasReconnecting, reconnecting) -> {
+            if (!reconnecting) {
+                recovered.countDown();
+            }
+        });
+
+        ChannelFuture lost = client.closeFuture();
+        stopServer();
+        assertTrue(lost.await(5, TimeUnit.SECONDS));
+        assertTrue(client.isUnexpectedClose());
+
+        long started = System.nanoTime();
+        engine.start();
+        Thread.sleep(DOWNTIME);
+        startServer(port);
+
+        // The server is back before the backoff reaches its cap, so the first attempt after that has to connect
+        assertTrue("Did not recover", recovered.await(DOWNTIME + MAX_DELAY + 2000, TimeUnit.MILLISECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        assertTrue(client.isConnectionActive());
+        assertFalse(engine.isRunning());
+
+        drainUiThread();
+        double recovery = engine.lastRecoveryTimeProperty().get();
+        System.out.printf("Recovered %.1fms after reconnecting started, the server was down for %dms%n", recovery, DOWNTIME);
+        assertTrue("Recovered before the server was back", recovery >= DOWNTIME);
+        assertTrue("Took " + recovery + "ms to recover", recovery <= elapsed);
+        assertTrue("Took " + recovery + "ms to recover", recovery < DOWNTIME + MAX_DELAY + 1000);
+        assertEquals(-1, engine.nextAttemptDelayProperty().get());
+
+        List<ReconnectEngine.Attempt> history = engine.getHistory();
+        assertTrue(history.size() > 1);
+        for (int i = 0; i < history.size(); i++) {
+            ReconnectEngine.Attempt attempt = history.get(i);
+            assertEquals(i + 1, attempt.getNumber());
+            assertEquals(expectedDelay(i + 1), attempt.getDelay(), 0);
+            assertEquals(attempt.toString(), i == history.size() - 1, attempt.isSuccess());
+        }
+    }
+
+    @Test
+    public void cancelStopsAttempts() throws Exception {
+        stopServer();
+        engine.start();
+        assertTrue(engine.isRunning());
+        Thread.sleep(INITIAL_DELAY * 3);
+        engine.cancel();
+        assertFalse(engine.isRunning());
+
+        drainUiThread();
+        int attempts = engine.getHistory().size();
+        assertTrue(attempts > 0);
+        assertFalse(engine.reconnectingProperty().get());
+        assertEquals(-1, engine.nextAttemptDelayProperty().get());
+
+        Thread.sleep(MAX_DELAY * 2);
+        drainUiThread();
+        // An attempt that was already connecting may still land in the history, but nothing new is scheduled
+        assertTrue(engine.getHistory().size() <= attempts + 1);
+        assertFalse(client.isConnectionActive());
+    }
+}
@@ -0,0 +1,163 @@
+package ml.dent.video;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import org.freedesktop.gstreamer.ElementFactory;
+import org.freedesktop.gstreamer.Gst;
+import org.freedesktop.gstreamer.PadProbeReturn;
+import org.freedesktop.gstreamer.Pipeline;
+import org.freedesktop.gstreamer.elements.AppSrc;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streams the same bytes from a local server through a {@link VideoClient} in each {@link VideoClient.IngestMode},
+ * into an appsrc that feeds a fakesink. The client's own receiver and appsrc callbacks move the bytes, only the
+ * decoding part of the pipeline is left out. Only reports the numbers, they depend on the machine. Needs GStreamer with
+ * its base plugins to be installed and is skipped otherwise.
+ */
+public class IngestThroughputTest {
+
+    // A typical socket read
+    private static final int READ_SIZE = 2048;
+
+    private static final int WARM_UP_BYTES = 1 << 20;
+    private static final int BYTES         = 8 << 20;
+
+    private static boolean gstreamer;
+
+    private EventLoopGroup serverGroup;
+    private Channel        server;
+
+    private final byte[] chunk = new byte[READ_SIZE];
+    private final long   chunkSum;
+
+    public IngestThroughputTest() {
+        long sum = 0;
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) (i * 31);
+            sum += chunk[i] & 0xff;
+        }
+        chunkSum = sum;
+    }
+
+    @BeforeClass
+    public static void initGStreamer() {
+        try {
+            GStreamerLibrary.getInstance().init();
+            gstreamer = ElementFactory.find("appsrc") != null;
+        } catch (Throwable t) {
+            gstreamer = false;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue("GStreamer or its appsrc is not installed", gstreamer);
+        serverGroup = new NioEventLoopGroup(1);
+        server = new ServerBootstrap().group(serverGroup).channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+                        for (int sent = 0; sent < WARM_UP_BYTES + BYTES; sent += READ_SIZE) {
+                            ctx.write(ctx.alloc().directBuffer(READ_SIZE).writeBytes(chunk));
+                        }
+                        ctx.flush();
+                        super.channelActive(ctx);
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.close().await(1, TimeUnit.SECONDS);
+        }
+        if (serverGroup != null) {
+            serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static long sum(ByteBuffer buffer) {
+        long sum = 0;
+        while (buffer.hasRemaining()) {
+            sum += buffer.get() & 0xff;
+        }
+        return sum;
+    }
+
+    private void measure(VideoClient.IngestMode mode) throws Exception {
+        Pipeline pipeline = (Pipeline) Gst.parseLaunch("appsrc name=src ! fakesink name=sink sync=false");
+        AtomicLong received = new AtomicLong();
+        AtomicLong receivedSum = new AtomicLong();
+        AtomicLong warmedUp = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(1);
+        pipeline.getElementByName("sink").getStaticPad("sink").addDataProbe((pad, buffer) -> {
+            ByteBuffer bytes = buffer.map(false);
+            int length = bytes.remaining();
+            receivedSum.addAndGet(sum(bytes));
+            buffer.unmap();
+            long total = received.addAndGet(length);
+            if (total >= WARM_UP_BYTES && warmedUp.get() == 0) {
+                warmedUp.set(System.nanoTime());
+            }
+            if (total >= WARM_UP_BYTES + BYTES) {
+                done.countDown();
+            }
+            return PadProbeReturn.OK;
+        });
+
+        int port = ((InetSocketAddress) server.localAddress()).getPort();
+        VideoClient client = new VideoClient("127.0.0.1", port);
+        client.setBounceServerProtocol(false);
+        client.setIngestMode(mode);
+        client.configureSource((AppSrc) pipeline.getElementByName("src"));
+        pipeline.play();
+        try {
+            assertTrue(client.connect().await(5, TimeUnit.SECONDS));
+            assertTrue(mode + " did not deliver every byte", done.await(60, TimeUnit.SECONDS));
+            long nanos = System.nanoTime() - warmedUp.get();
+
+            assertEquals(mode + " lost bytes", WARM_UP_BYTES + BYTES, received.get());
+            assertEquals(mode + " changed bytes", (WARM_UP_BYTES + BYTES) / READ_SIZE * chunkSum, receivedSum.get());
+            System.out.printf("%s ingest: %.1f MB/s%n", mode, BYTES / (nanos / 1e9) / (1 << 20));
+        } finally {
+            client.disconnect().await(1, TimeUnit.SECONDS);
+            client.closeSource();
+            pipeline.stop();
+            pipeline.dispose();
+        }
+    }
+
+    @Test
+    public void queue() throws Exception {
+        measure(VideoClient.IngestMode.QUEUE);
+    }
+
+    @Test
+    public void push() throws Exception {
+        measure(VideoClient.IngestMode.PUSH);
+    }
+
+    @Test
+    public void ring() throws Exception {
+        measure(VideoClient.IngestMode.RING);
+    }
+}